@@ -0,0 +1,16 @@
+#!/bin/sh
+#
+# Thin client for a running `java Main --server <socket>`: sends the pattern and stdin,
+# prints the matching lines and exits with the server's status, without starting a JVM.
+# Needs socat.
+#
+# Usage: ./grep-client.sh <socket> <pattern> < input
+
+if [ $# -ne 2 ]; then
+  echo "Usage: $0 <socket> <pattern> < input" >&2
+  exit 2
+fi
+
+{ printf '%s\0' 2 -E "$2"; cat; } \
+  | socat -t 60 - UNIX-CONNECT:"$1" \
+  | { IFS= read -r status || exit 2; cat; exit "$status"; }
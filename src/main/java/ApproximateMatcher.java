@@ -0,0 +1,153 @@
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// agrep-style matching with up to k insertions, deletions or substitutions, using the
+// Wu-Manber extension of shift-and. Bit p of state[d] is set when the first p + 1
+// pattern positions match a suffix of the text read so far with at most d errors.
+// Patterns of up to 64 positions use one long per error level; longer patterns use
+// blocks of longs with the shift carried between words.
+public class ApproximateMatcher {
+    private final String source;
+    private final Token[] positions;
+    private final int m;
+    private final int k;
+    private final int words;
+    private final long lastWordMask;
+    private final boolean anchoredStart;
+    private final boolean anchoredEnd;
+    private final PatternMetrics metrics;
+
+    private final long[][] asciiMasks = new long[128][];
+    private final ConcurrentHashMap<Character, long[]> otherMasks = new ConcurrentHashMap<>();
+
+    public ApproximateMatcher(RegexMatcher matcher, int maxErrors) {
+        if (maxErrors < 0) throw new IllegalArgumentException("--max-errors must be >= 0");
+        List<Token> tokens = matcher.tokens();
+        for (Token t : tokens) {
+            if (!t.isSingleChar() || t.quantifier != Token.Quantifier.ONE) {
+                throw new IllegalArgumentException(
+                        "--max-errors supports literals, ., \\d, \\w and [...] without quantifiers, groups or backreferences");
+            }
+        }
+        this.source = matcher.source();
+        this.positions = tokens.toArray(new Token[0]);
+        this.m = positions.length;
+        this.k = maxErrors;
+        this.words = Math.max(1, (m + 63) / 64);
+        this.lastWordMask = m % 64 == 0 ? -1L : (1L << (m % 64)) - 1;
+        this.anchoredStart = matcher.anchoredStart();
+        this.anchoredEnd = matcher.anchoredEnd();
+        this.metrics = PatternMetrics.forPattern(source);
+        for (char c = 0; c < 128; c++) asciiMasks[c] = buildMask(c);
+    }
+
+    public boolean matches(String input) {
+        boolean found = firstMatchEnd(input) >= 0;
+        if (metrics != null) {
+            metrics.calls.increment();
+            metrics.charsScanned.add(input.length());
+            metrics.tierUses[PatternMetrics.Tier.APPROXIMATE.ordinal()].increment();
+            if (found) metrics.matches.increment();
+        }
+        return found;
+    }
+
+    // Offset just past the earliest-ending match, or -1. With k = 0 every match is
+    // exactly m chars long, so the match starts at the returned offset minus m.
+    public int firstMatchEnd(String input) {
+        if (m == 0) {
+            if (!anchoredEnd) return 0;
+            return !anchoredStart || input.length() <= k ? input.length() : -1;
+        }
+        return words == 1 ? scanSingleWord(input) : scanBlocked(input);
+    }
+
+    // The empty pattern prefix is reachable with d errors after i chars: always when the
+    // match may start anywhere, otherwise only by inserting all i chars.
+    private long empty(int d, int i) {
+        return (!anchoredStart || i <= d) ? 1L : 0L;
+    }
+
+    private int scanSingleWord(String input) {
+        long accept = 1L << (m - 1);
+        long mask = lastWordMask;
+        long[] state = new long[k + 1];
+        for (int d = 1; d <= k; d++) state[d] = ((state[d - 1] << 1) | empty(d - 1, 0)) & mask;
+        if (!anchoredEnd && (state[k] & accept) != 0) return 0;
+
+        int n = input.length();
+        for (int i = 0; i < n; i++) {
+            long b = mask(input.charAt(i))[0];
+            long prevOld = state[0];
+            state[0] = ((state[0] << 1) | empty(0, i)) & b;
+            for (int d = 1; d <= k; d++) {
+                long old = state[d];
+                state[d] = ((((old << 1) | empty(d, i)) & b)
+                        | prevOld
+                        | (prevOld << 1) | empty(d - 1, i)
+                        | (state[d - 1] << 1) | empty(d - 1, i + 1)) & mask;
+                prevOld = old;
+            }
+            if (!anchoredEnd && (state[k] & accept) != 0) return i + 1;
+        }
+        return (state[k] & accept) != 0 ? n : -1;
+    }
+
+    private int scanBlocked(String input) {
+        int top = words - 1;
+        long accept = 1L << ((m - 1) % 64);
+        long[][] state = new long[k + 1][words];
+        long[] old = new long[words];
+        long[] prevOld = new long[words];
+        for (int d = 1; d <= k; d++) shiftInto(state[d - 1], empty(d - 1, 0), state[d]);
+        if (!anchoredEnd && (state[k][top] & accept) != 0) return 0;
+
+        long[] shifted = new long[words];
+        int n = input.length();
+        for (int i = 0; i < n; i++) {
+            long[] b = mask(input.charAt(i));
+
+            System.arraycopy(state[0], 0, prevOld, 0, words);
+            shiftInto(state[0], empty(0, i), shifted);
+            for (int w = 0; w < words; w++) state[0][w] = shifted[w] & b[w];
+
+            for (int d = 1; d <= k; d++) {
+                System.arraycopy(state[d], 0, old, 0, words);
+                long[] cur = state[d];
+                shiftInto(old, empty(d, i), shifted);
+                for (int w = 0; w < words; w++) cur[w] = (shifted[w] & b[w]) | prevOld[w];
+                shiftInto(prevOld, empty(d - 1, i), shifted);
+                for (int w = 0; w < words; w++) cur[w] |= shifted[w];
+                shiftInto(state[d - 1], empty(d - 1, i + 1), shifted);
+                for (int w = 0; w < words; w++) cur[w] |= shifted[w];
+                cur[top] &= lastWordMask;
+                System.arraycopy(old, 0, prevOld, 0, words);
+            }
+            if (!anchoredEnd && (state[k][top] & accept) != 0) return i + 1;
+        }
+        return (state[k][top] & accept) != 0 ? n : -1;
+    }
+
+    private void shiftInto(long[] src, long carryIn, long[] dst) {
+        long carry = carryIn;
+        for (int w = 0; w < words; w++) {
+            long v = src[w];
+            dst[w] = (v << 1) | carry;
+            carry = v >>> 63;
+        }
+        dst[words - 1] &= lastWordMask;
+    }
+
+    private long[] mask(char c) {
+        if (c < 128) return asciiMasks[c];
+        return otherMasks.computeIfAbsent(c, this::buildMask);
+    }
+
+    private long[] buildMask(char c) {
+        long[] mask = new long[words];
+        for (int p = 0; p < m; p++) {
+            if (positions[p].matchesChar(c)) mask[p >>> 6] |= 1L << (p & 63);
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,116 @@
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+public class BatchMatcher {
+    // Records per parallel task; small batches are not worth the fork/join overhead.
+    private static final int MIN_CHUNK = 1024;
+
+    private final RegexMatcher matcher;
+
+    public BatchMatcher(RegexMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    public BatchMatcher(String pattern) {
+        this(new RegexMatcher(pattern));
+    }
+
+    public BitSet matchAll(CharSequence[] records) {
+        return matchAll(records, false);
+    }
+
+    public BitSet matchAll(CharSequence[] records, boolean parallel) {
+        return matchRange(records.length, parallel, (from, to, result) -> {
+            Captures scratch = new Captures();
+            for (int r = from; r < to; r++) {
+                if (matcher.find(records[r].toString(), scratch) >= 0) result.set(r - from);
+            }
+        });
+    }
+
+    // Columnar form: record r is data[offsets[r] .. offsets[r + 1]).
+    public BitSet matchAll(char[] data, int[] offsets, boolean parallel) {
+        return matchRange(offsets.length - 1, parallel, (from, to, result) -> {
+            Captures scratch = new Captures();
+            for (int r = from; r < to; r++) {
+                String record = new String(data, offsets[r], offsets[r + 1] - offsets[r]);
+                if (matcher.find(record, scratch) >= 0) result.set(r - from);
+            }
+        });
+    }
+
+    // Columnar form over UTF-8 bytes, e.g. a block read straight from a file: record r is
+    // data[offsets[r] .. offsets[r + 1]).
+    public BitSet matchAll(byte[] data, int[] offsets, boolean parallel) {
+        return matchRange(offsets.length - 1, parallel, (from, to, result) -> {
+            Captures scratch = new Captures();
+            for (int r = from; r < to; r++) {
+                String record = new String(data, offsets[r], offsets[r + 1] - offsets[r], StandardCharsets.UTF_8);
+                if (matcher.find(record, scratch) >= 0) result.set(r - from);
+            }
+        });
+    }
+
+    // Returns [start0, end0, start1, end1, ...] with -1 for records that do not match.
+    public int[] findAll(CharSequence[] records, boolean parallel) {
+        int[] spans = new int[records.length * 2];
+        forEachChunk(records.length, parallel, (from, to) -> {
+            Captures scratch = new Captures();
+            for (int r = from; r < to; r++) {
+                int start = matcher.find(records[r].toString(), scratch);
+                spans[2 * r] = start;
+                spans[2 * r + 1] = start >= 0 ? scratch.getMatchEnd() : -1;
+            }
+        });
+        return spans;
+    }
+
+    private interface ChunkTask {
+        void run(int from, int to);
+    }
+
+    private interface BitChunkTask {
+        // Bit i of result stands for record from + i.
+        void run(int from, int to, BitSet result);
+    }
+
+    private BitSet matchRange(int count, boolean parallel, BitChunkTask task) {
+        if (!parallel || count <= MIN_CHUNK) {
+            BitSet result = new BitSet(count);
+            task.run(0, count, result);
+            return result;
+        }
+        // BitSet is not thread-safe, so each chunk fills one sized to the chunk. Chunks are
+        // a multiple of 64 records, so each part's words drop into place in the result.
+        int chunk = chunkSize(count);
+        BitSet[] parts = new BitSet[(count + chunk - 1) / chunk];
+        IntStream.range(0, parts.length).parallel().forEach(c -> {
+            int from = c * chunk, to = Math.min(count, from + chunk);
+            parts[c] = new BitSet(to - from);
+            task.run(from, to, parts[c]);
+        });
+        long[] words = new long[(count + 63) / 64];
+        for (int c = 0; c < parts.length; c++) {
+            long[] part = parts[c].toLongArray();
+            System.arraycopy(part, 0, words, c * chunk / 64, part.length);
+        }
+        return BitSet.valueOf(words);
+    }
+
+    private void forEachChunk(int count, boolean parallel, ChunkTask task) {
+        if (!parallel || count <= MIN_CHUNK) {
+            task.run(0, count);
+            return;
+        }
+        int chunk = chunkSize(count);
+        IntStream.range(0, (count + chunk - 1) / chunk).parallel()
+                .forEach(c -> task.run(c * chunk, Math.min(count, (c + 1) * chunk)));
+    }
+
+    private static int chunkSize(int count) {
+        int tasks = Runtime.getRuntime().availableProcessors() * 4;
+        int chunk = Math.max(MIN_CHUNK, (count + tasks - 1) / tasks);
+        return (chunk + 63) & ~63;
+    }
+}
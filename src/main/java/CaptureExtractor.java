@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.io.Writer;
+
+// Writes the capture groups of the first match on every matching line as one CSV row or
+// one JSON array per line. Fields are escaped char by char straight from the input buffer,
+// so no String is created per group. Patterns without groups emit the whole match.
+public class CaptureExtractor {
+    public enum Format { CSV, JSON }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final RegexMatcher matcher;
+    private final Format format;
+    private final Writer out;
+
+    public CaptureExtractor(RegexMatcher matcher, Format format, Writer out) {
+        this.matcher = matcher;
+        this.format = format;
+        this.out = out;
+    }
+
+    // Returns the number of records written.
+    public long extract(String input) throws IOException {
+        int groups = matcher.groupCount();
+        long[] records = { 0 };
+        IOException[] failure = { null };
+        matcher.scanLines(input, (lineStart, lineEnd, matchStart, caps) -> {
+            try {
+                writeRecord(input, groups, matchStart, caps);
+                records[0]++;
+                return true;
+            } catch (IOException e) {
+                failure[0] = e;
+                return false;
+            }
+        });
+        out.flush();
+        if (failure[0] != null) throw failure[0];
+        return records[0];
+    }
+
+    private void writeRecord(String input, int groups, int matchStart, Captures caps) throws IOException {
+        if (format == Format.JSON) out.write('[');
+        if (groups == 0) {
+            writeField(input, matchStart, caps.getMatchEnd());
+        } else {
+            for (int g = 1; g <= groups; g++) {
+                if (g > 1) out.write(',');
+                Captures.Span s = caps.getSpan(g);
+                if (s == null) {
+                    if (format == Format.JSON) out.write("null");
+                } else {
+                    writeField(input, s.start, s.end);
+                }
+            }
+        }
+        if (format == Format.JSON) out.write(']');
+        out.write('\n');
+    }
+
+    private void writeField(String input, int start, int end) throws IOException {
+        if (format == Format.JSON) {
+            writeJsonString(input, start, end);
+        } else {
+            writeCsvField(input, start, end);
+        }
+    }
+
+    private void writeCsvField(String input, int start, int end) throws IOException {
+        boolean quote = false;
+        for (int k = start; k < end && !quote; k++) {
+            char c = input.charAt(k);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(input, start, end - start);
+            return;
+        }
+        out.write('"');
+        int run = start;
+        for (int k = start; k < end; k++) {
+            if (input.charAt(k) == '"') {
+                // Write up to and including the quote, then double it
+                out.write(input, run, k + 1 - run);
+                out.write('"');
+                run = k + 1;
+            }
+        }
+        out.write(input, run, end - run);
+        out.write('"');
+    }
+
+    private void writeJsonString(String input, int start, int end) throws IOException {
+        out.write('"');
+        int run = start;
+        for (int k = start; k < end; k++) {
+            char c = input.charAt(k);
+            if (c >= 0x20 && c != '"' && c != '\\') continue;
+            out.write(input, run, k - run);
+            run = k + 1;
+            switch (c) {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                case '\b': out.write("\\b"); break;
+                case '\f': out.write("\\f"); break;
+                default:
+                    out.write("\\u00");
+                    out.write(HEX[c >> 4]);
+                    out.write(HEX[c & 0xf]);
+                    break;
+            }
+        }
+        out.write(input, run, end - run);
+        out.write('"');
+    }
+}
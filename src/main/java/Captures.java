@@ -13,25 +13,62 @@ public class Captures {
     private final Map<Integer, List<Token>> groupTokenMap = new HashMap<>();
     private final java.util.Set<Integer> lockedGroups = new java.util.HashSet<>();
     private boolean allowLocking = true;
+    private int matchEnd = -1;
+    // Per-call counters while metrics are on, shared by every copy made during the call
+    private PatternMetrics.Counters counters;
+    // Set for multiline matchers: . and [^...] must not run past the end of the line
+    private boolean lineMode = false;
 
     public void disableLocking() { this.allowLocking = false; }
     public void enableLocking() { this.allowLocking = true; }
 
 
     public Captures copy() {
+        if (counters != null) counters.capturesCopies++;
         Captures c = new Captures();
+        c.counters = this.counters;
+        c.lineMode = this.lineMode;
         c.groups.putAll(this.groups);
         c.groupTokenMap.putAll(this.groupTokenMap);
         c.lockedGroups.addAll(this.lockedGroups);
         c.allowLocking = this.allowLocking;
+        c.matchEnd = this.matchEnd;
         return c;
     }
 
+    // Clears all state so one instance can be reused across start offsets and records.
+    public void reset() {
+        groups.clear();
+        groupTokenMap.clear();
+        lockedGroups.clear();
+        allowLocking = true;
+        matchEnd = -1;
+    }
+
+    void setCounters(PatternMetrics.Counters counters) { this.counters = counters; }
+
+    void countStartAttempt() {
+        if (counters != null) counters.startAttempts++;
+    }
+
+    void countBacktrack() {
+        if (counters != null) counters.backtrackSteps++;
+    }
+    void setLineMode(boolean lineMode) { this.lineMode = lineMode; }
+    public boolean isLineMode() { return lineMode; }
+
+    public void setMatchEnd(int end) { this.matchEnd = end; }
+    public int getMatchEnd() { return matchEnd; }
+
+    public Span getSpan(int idx) {
+        return groups.get(idx);
+    }
+
     public void set(int idx, int start, int end) {
         if (!lockedGroups.contains(idx)) {
             groups.put(idx, new Span(start, end));
             if (allowLocking) lockedGroups.add(idx);
-            System.out.println("in Captures.set idx :" + idx + " start : " + start + " end : " + end);
+            if (RegexMatcher.DEBUG) System.err.printf("[DEBUG] Group %d set to [%d, %d)%n", idx, start, end);
         }
     }
 
@@ -46,7 +83,7 @@ public class Captures {
         if (!lockedGroups.contains(idx)) {
             groupTokenMap.put(idx, tokens);
             if (allowLocking) lockedGroups.add(idx);
-            System.err.printf("[DEBUG] Group %d tokens: %s%n", idx, tokensToString(tokens));
+            if (RegexMatcher.DEBUG) System.err.printf("[DEBUG] Group %d tokens: %s%n", idx, tokensToString(tokens));
         }
     }
 
@@ -62,6 +99,7 @@ public class Captures {
 //    }
     
     public void replaceWith(Captures other) {
+        this.matchEnd = other.matchEnd;
         for (Map.Entry<Integer, Span> entry : other.groups.entrySet()) {
             int idx = entry.getKey();
             if (!lockedGroups.contains(idx)) {
@@ -0,0 +1,153 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipInputStream;
+
+public class DecompressingInputStream extends InputStream {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int RING_SLOTS = 8;
+
+    private static final class Chunk {
+        final byte[] data = new byte[CHUNK_SIZE];
+        int length;
+    }
+
+    // Filled chunks travel decoder -> reader on `full`, and come back on `free`,
+    // so the ring never allocates after startup and the decoder can run at most
+    // RING_SLOTS chunks ahead of the matcher.
+    private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(RING_SLOTS);
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(RING_SLOTS);
+    private final Chunk endOfStream = new Chunk();
+    private final Thread decoder;
+    private volatile IOException failure;
+    private volatile boolean closed = false;
+
+    private Chunk current;
+    private int pos;
+
+    private DecompressingInputStream(InputStream decoded) {
+        for (int i = 0; i < RING_SLOTS; i++) free.add(new Chunk());
+        decoder = new Thread(() -> decode(decoded), "grep-decompress");
+        decoder.setDaemon(true);
+        decoder.start();
+    }
+
+    // Returns a stream that yields the decompressed bytes when the input starts
+    // with a gzip, zip or zlib header, and the input itself otherwise.
+    public static InputStream open(InputStream raw) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(raw, CHUNK_SIZE);
+        in.mark(4);
+        int b0 = in.read(), b1 = in.read(), b2 = in.read(), b3 = in.read();
+        in.reset();
+
+        if (b0 == 0x1f && b1 == 0x8b) {
+            return new DecompressingInputStream(new GZIPInputStream(in, CHUNK_SIZE));
+        }
+        if (b0 == 'P' && b1 == 'K' && b2 == 3 && b3 == 4) {
+            ZipInputStream zip = new ZipInputStream(in);
+            zip.getNextEntry();
+            return new DecompressingInputStream(zip);
+        }
+        if (isZlib(in, b0, b1)) {
+            return new DecompressingInputStream(new InflaterInputStream(in));
+        }
+        return in;
+    }
+
+    // RFC 1950 header: deflate with a window of at most 32K, no preset dictionary, and the
+    // two bytes a multiple of 31. Plain text can pass that ("x^" does), so the input must
+    // also inflate without error. It is fed to the inflater one read at a time, so text
+    // is usually rejected on the bytes already in the pipe instead of after a full chunk.
+    // A stream that ends before the inflater finishes is not zlib.
+    private static boolean isZlib(BufferedInputStream in, int b0, int b1) throws IOException {
+        if (b0 < 0 || b1 < 0) return false;
+        if ((b0 & 0x0f) != 8 || (b0 >> 4) > 7 || (b1 & 0x20) != 0 || ((b0 << 8) | b1) % 31 != 0) {
+            return false;
+        }
+        in.mark(CHUNK_SIZE);
+        Inflater inflater = new Inflater();
+        try {
+            byte[] prefix = new byte[CHUNK_SIZE];
+            byte[] out = new byte[CHUNK_SIZE];
+            int total = 0;
+            while (total < CHUNK_SIZE) {
+                // Returns what is buffered or one read's worth, never waiting for a full chunk
+                int n = in.read(prefix, total, CHUNK_SIZE - total);
+                if (n < 0) return inflater.finished();
+                inflater.setInput(prefix, total, n);
+                total += n;
+                while (!inflater.finished() && !inflater.needsInput()) inflater.inflate(out);
+                if (inflater.finished()) return true;
+            }
+            return true;
+        } catch (DataFormatException e) {
+            return false;
+        } finally {
+            inflater.end();
+            in.reset();
+        }
+    }
+
+    private void decode(InputStream decoded) {
+        try (decoded) {
+            while (!closed) {
+                Chunk c = free.take();
+                int n = decoded.readNBytes(c.data, 0, CHUNK_SIZE);
+                if (n == 0) break;
+                c.length = n;
+                full.put(c);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            full.offer(endOfStream);
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (current == endOfStream) return false;
+        if (current != null) free.offer(current);
+        try {
+            current = full.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for decompressed data", e);
+        }
+        pos = 0;
+        if (current == endOfStream) {
+            if (failure != null) throw failure;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ((current == null || pos >= current.length) && !fill()) return -1;
+        return current.data[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if ((current == null || pos >= current.length) && !fill()) return -1;
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current.data, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        decoder.interrupt();
+    }
+}
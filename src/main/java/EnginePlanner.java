@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Picks how RegexMatcher.find executes a pattern by inspecting its token tree and,
+// optionally, a sample of the input:
+//   LITERAL                plain string search, the pattern is only literal chars
+//   SHIFT_AND              bit-parallel automaton, every token consumes exactly one char
+//   REVERSE_SUFFIX         backtracking, with starts bounded by the last occurrence of the
+//                          literal the match must end with
+//   PREFILTERED_BACKTRACK  backtracking from occurrences of the leading literal only
+//   BACKTRACK              backtracking from every offset
+public class EnginePlanner {
+    // A suffix shorter than this rarely rejects more input than the leading-char prefilter
+    private static final int MIN_SUFFIX = 2;
+
+    public static final class Plan {
+        public final PatternMetrics.Tier tier;
+        public final String literal;
+        public final String suffix;
+        public final List<String> reasons;
+
+        Plan(PatternMetrics.Tier tier, String literal, String suffix, List<String> reasons) {
+            this.tier = tier;
+            this.literal = literal;
+            this.suffix = suffix;
+            this.reasons = reasons;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("plan: ").append(tier);
+            if (literal != null) sb.append(" literal=\"").append(literal).append('"');
+            if (suffix != null) sb.append(" suffix=\"").append(suffix).append('"');
+            for (String r : reasons) sb.append("\n  - ").append(r);
+            return sb.toString();
+        }
+    }
+
+    public static Plan plan(RegexMatcher matcher) {
+        return plan(matcher, null);
+    }
+
+    public static Plan plan(RegexMatcher matcher, String sample) {
+        List<Token> tokens = matcher.tokens();
+        List<String> reasons = new ArrayList<>();
+
+        int total = countTokens(tokens);
+        int literals = countLiterals(tokens);
+        int backrefs = countType(tokens, Token.TokenType.BACKREF);
+        reasons.add(String.format("%d token(s), %d literal (%.0f%% literal density), %d group(s), %d backreference(s)",
+                total, literals, total == 0 ? 0.0 : 100.0 * literals / total, matcher.groupCount(), backrefs));
+        if (matcher.anchoredStart() || matcher.anchoredEnd()) {
+            reasons.add("anchored at " + (matcher.anchoredStart() ? "start" : "")
+                    + (matcher.anchoredStart() && matcher.anchoredEnd() ? " and " : "")
+                    + (matcher.anchoredEnd() ? "end" : ""));
+        }
+        if (hasNestedQuantifier(tokens, false)) {
+            reasons.add("nested quantifiers: backtracking can go exponential on inputs that almost match");
+        }
+
+        if (matcher.multiline()) {
+            int leading = matcher.leadingLiteral();
+            reasons.add("line mode (--multiline, --extract): ^ and $ match at every line boundary, so each line is searched by the backtracker"
+                    + (leading >= 0 ? " from the occurrences of '" + (char) leading + "'" : ""));
+            return new Plan(PatternMetrics.Tier.MULTILINE_BACKTRACK, null, null, reasons);
+        }
+        if (isPlainSequence(tokens) && literals == tokens.size()) {
+            StringBuilder lit = new StringBuilder();
+            for (Token t : tokens) lit.append(t.text);
+            reasons.add("only literal chars: a single string search needs no engine state");
+            return new Plan(PatternMetrics.Tier.LITERAL, lit.toString(), null, reasons);
+        }
+        if (isPlainSequence(tokens)) {
+            reasons.add("every token matches exactly one char: shift-and runs in one pass without backtracking");
+            return new Plan(PatternMetrics.Tier.SHIFT_AND, null, null, reasons);
+        }
+        if (backrefs > 0) reasons.add("backreferences need the backtracking engine");
+
+        String suffix = literalSuffix(tokens);
+        int leading = matcher.leadingLiteral();
+        if (suffix.length() >= MIN_SUFFIX) {
+            if (sample != null && !sample.isEmpty() && leading >= 0) {
+                double leadingRate = (double) occurrences(sample, String.valueOf((char) leading)) / sample.length();
+                double suffixRate = (double) occurrences(sample, suffix) / sample.length();
+                reasons.add(String.format("sample of %d chars: leading '%c' rate %.4f, suffix \"%s\" rate %.4f",
+                        sample.length(), (char) leading, leadingRate, suffix, suffixRate));
+                if (suffixRate >= leadingRate) {
+                    reasons.add("suffix is no rarer than the leading literal in the sample: skip the suffix scan");
+                    return new Plan(PatternMetrics.Tier.PREFILTERED_BACKTRACK, null, null, reasons);
+                }
+            }
+            reasons.add("every match ends with \"" + suffix + "\": starts after its last occurrence cannot match");
+            return new Plan(PatternMetrics.Tier.REVERSE_SUFFIX, null, suffix, reasons);
+        }
+        if (leading >= 0) {
+            reasons.add("every match starts with '" + (char) leading + "': only its occurrences are tried");
+            return new Plan(PatternMetrics.Tier.PREFILTERED_BACKTRACK, null, null, reasons);
+        }
+        reasons.add("no literal to anchor on: backtracking from every offset");
+        return new Plan(PatternMetrics.Tier.BACKTRACK, null, null, reasons);
+    }
+
+    // Longest run of literal chars that every match contains, or "" if there is none.
+    static String requiredLiteral(List<Token> tokens) {
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        for (Token t : tokens) {
+            if (t.type == Token.TokenType.CHAR && t.quantifier == Token.Quantifier.ONE) {
+                run.append(t.text);
+                if (run.length() > best.length()) best = run.toString();
+            } else {
+                run.setLength(0);
+            }
+        }
+        return best;
+    }
+
+    private static boolean isPlainSequence(List<Token> tokens) {
+        for (Token t : tokens) {
+            if (!t.isSingleChar() || t.quantifier != Token.Quantifier.ONE) return false;
+        }
+        return true;
+    }
+
+    private static String literalSuffix(List<Token> tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = tokens.size() - 1; j >= 0; j--) {
+            Token t = tokens.get(j);
+            if (t.type != Token.TokenType.CHAR || t.quantifier != Token.Quantifier.ONE) break;
+            sb.append(t.text);
+        }
+        return sb.reverse().toString();
+    }
+
+    private static boolean hasNestedQuantifier(List<Token> tokens, boolean insideQuantified) {
+        for (Token t : tokens) {
+            boolean quantified = t.quantifier != Token.Quantifier.ONE;
+            if (quantified && insideQuantified) return true;
+            for (List<Token> child : children(t)) {
+                if (hasNestedQuantifier(child, insideQuantified || quantified)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countTokens(List<Token> tokens) {
+        int n = 0;
+        for (Token t : tokens) {
+            n++;
+            for (List<Token> child : children(t)) n += countTokens(child);
+        }
+        return n;
+    }
+
+    private static int countLiterals(List<Token> tokens) {
+        return countType(tokens, Token.TokenType.CHAR);
+    }
+
+    private static int countType(List<Token> tokens, Token.TokenType type) {
+        int n = 0;
+        for (Token t : tokens) {
+            if (t.type == type) n++;
+            for (List<Token> child : children(t)) n += countType(child, type);
+        }
+        return n;
+    }
+
+    private static List<List<Token>> children(Token t) {
+        if (t.type == Token.TokenType.GROUP && t.groupTokens != null) return List.of(t.groupTokens);
+        if (t.type == Token.TokenType.ALTERNATION && t.alternatives != null) return t.alternatives;
+        return List.of();
+    }
+
+    private static int occurrences(String sample, String s) {
+        int n = 0;
+        for (int i = sample.indexOf(s); i >= 0; i = sample.indexOf(s, i + 1)) n++;
+        return n;
+    }
+}
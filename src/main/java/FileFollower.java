@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class FileFollower {
+    private static final long MIN_POLL_MILLIS = 5;
+    private static final long MAX_POLL_MILLIS = 1000;
+
+    private static final class Tracked {
+        final Path path;
+        final LineSplitter splitter = new LineSplitter();
+        FileChannel channel;
+        Object fileKey;
+        long position;
+
+        Tracked(Path path) { this.path = path; }
+    }
+
+    private final RegexMatcher matcher;
+    private final List<Tracked> files = new ArrayList<>();
+    private final PrintStream out;
+    private final boolean prefixNames;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private volatile boolean stopped = false;
+
+    public FileFollower(RegexMatcher matcher, List<Path> paths, PrintStream out) {
+        this.matcher = matcher;
+        this.out = out;
+        this.prefixNames = paths.size() > 1;
+        for (Path p : paths) files.add(new Tracked(p));
+    }
+
+    public void stop() { stopped = true; }
+
+    public void run() throws IOException, InterruptedException {
+        // Like tail -f, only lines appended after we start are matched
+        for (Tracked t : files) open(t, true);
+
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            Set<Path> dirs = new HashSet<>();
+            for (Tracked t : files) {
+                Path dir = t.path.toAbsolutePath().getParent();
+                if (dir != null && dirs.add(dir)) {
+                    dir.register(watcher,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                }
+            }
+
+            long pollMillis = MIN_POLL_MILLIS;
+            while (!stopped) {
+                boolean progressed = false;
+                for (Tracked t : files) progressed |= drain(t);
+                out.flush();
+
+                // Watch events wake us immediately; the timeout is only a fallback for
+                // filesystems that do not report changes, so back off while idle.
+                pollMillis = progressed ? MIN_POLL_MILLIS : Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+                WatchKey key;
+                try {
+                    key = watcher.poll(pollMillis, TimeUnit.MILLISECONDS);
+                } catch (ClosedWatchServiceException e) {
+                    break;
+                }
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                    pollMillis = MIN_POLL_MILLIS;
+                }
+            }
+        } finally {
+            for (Tracked t : files) close(t);
+        }
+    }
+
+    private boolean drain(Tracked t) throws IOException {
+        if (t.channel == null && !open(t, false)) return false;
+
+        boolean progressed = false;
+        BasicFileAttributes attrs = readAttributes(t.path);
+        boolean rotated = attrs == null || !Objects.equals(attrs.fileKey(), t.fileKey);
+
+        if (!rotated && t.channel.size() < t.position) {
+            // Truncated in place (copytruncate or > redirect): start over from the top
+            t.position = 0;
+            t.splitter.reset();
+        }
+
+        progressed |= readAppended(t);
+
+        if (rotated) {
+            // The old file was moved away; we already drained what was written to it,
+            // so flush its last unterminated line and pick up the replacement from the start.
+            emitRemainder(t);
+            close(t);
+            if (attrs != null) progressed |= open(t, false) && readAppended(t);
+        }
+        return progressed;
+    }
+
+    private boolean readAppended(Tracked t) throws IOException {
+        boolean progressed = false;
+        while (true) {
+            buffer.clear();
+            int n = t.channel.read(buffer, t.position);
+            if (n <= 0) break;
+            t.position += n;
+            progressed = true;
+            t.splitter.feed(buffer.array(), 0, n, (line, lineNumber, offset) -> {
+                emit(t, line);
+                return true;
+            });
+        }
+        return progressed;
+    }
+
+    private void emitRemainder(Tracked t) {
+        t.splitter.finish((line, lineNumber, offset) -> {
+            emit(t, line);
+            return true;
+        });
+    }
+
+    private void emit(Tracked t, String line) {
+        if (!matcher.matches(line)) return;
+        if (prefixNames) {
+            out.print(t.path);
+            out.print(':');
+        }
+        out.println(line);
+    }
+
+    private boolean open(Tracked t, boolean seekToEnd) throws IOException {
+        try {
+            t.channel = FileChannel.open(t.path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            t.channel = null;
+            return false;
+        }
+        BasicFileAttributes attrs = readAttributes(t.path);
+        t.fileKey = attrs != null ? attrs.fileKey() : null;
+        t.position = seekToEnd ? t.channel.size() : 0;
+        t.splitter.reset();
+        return true;
+    }
+
+    private void close(Tracked t) {
+        if (t.channel == null) return;
+        try {
+            t.channel.close();
+        } catch (IOException ignored) {
+        }
+        t.channel = null;
+    }
+
+    private static BasicFileAttributes readAttributes(Path p) {
+        try {
+            return Files.readAttributes(p, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class GrepServer {
+    // Plain byte framing, so a shell client (see grep-client.sh) can talk to the server
+    // without starting a JVM. One request per connection:
+    //   Request:  argc in decimal, NUL, each arg in UTF-8 followed by NUL, then the input
+    //             bytes until the client shuts down its write side
+    //   Response: exit code in decimal, newline, then the matching lines until close
+    static final int MAX_CACHED_PATTERNS = 4096;
+    static final int MAX_ARGS_BYTES = 1024 * 1024;
+    // File type bits of st_mode
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    private final Path socketPath;
+    private final ConcurrentHashMap<String, RegexMatcher> cache = new ConcurrentHashMap<>();
+
+    public GrepServer(Path socketPath) {
+        this.socketPath = socketPath;
+    }
+
+    public void serve() throws IOException {
+        removeStaleSocket(socketPath);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+             ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            socketPath.toFile().deleteOnExit();
+            while (true) {
+                SocketChannel client = server.accept();
+                workers.submit(() -> handle(client));
+            }
+        }
+    }
+
+    // Only a socket left by an earlier server may be replaced; any other file is kept
+    private static void removeStaleSocket(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) return;
+        int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+        if ((mode & S_IFMT) != S_IFSOCK) {
+            throw new FileAlreadyExistsException(path.toString(), null, "exists and is not a socket");
+        }
+        Files.delete(path);
+    }
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(client));
+            OutputStream out = Channels.newOutputStream(client);
+            String[] args = readArgs(in);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            // The search closes its input when done; that must not close the socket
+            InputStream body = new FilterInputStream(in) {
+                @Override public void close() { }
+            };
+            int status = args == null ? 2 : execute(args, body, output);
+            // Drain what the search did not read so the client's write does not fail
+            in.transferTo(OutputStream.nullOutputStream());
+            out.write((status + "\n").getBytes(StandardCharsets.US_ASCII));
+            output.writeTo(out);
+        } catch (IOException e) {
+            System.err.println("grep server: " + e.getMessage());
+        }
+    }
+
+    // NUL-terminated fields: the argument count in decimal, then each argument. Returns
+    // null when the header is malformed or larger than MAX_ARGS_BYTES.
+    private static String[] readArgs(InputStream in) throws IOException {
+        String count = readField(in);
+        if (count == null || count.isEmpty() || count.length() > 4 || !count.chars().allMatch(Character::isDigit)) {
+            return null;
+        }
+        String[] args = new String[Integer.parseInt(count)];
+        int budget = MAX_ARGS_BYTES;
+        for (int i = 0; i < args.length; i++) {
+            args[i] = readField(in);
+            if (args[i] == null) return null;
+            budget -= args[i].length();
+            if (budget < 0) return null;
+        }
+        return args;
+    }
+
+    private static String readField(InputStream in) throws IOException {
+        ByteArrayOutputStream field = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != 0) {
+            if (b < 0 || field.size() >= MAX_ARGS_BYTES) return null;
+            field.write(b);
+        }
+        return field.toString(StandardCharsets.UTF_8);
+    }
+
+    // Searches input line by line, like a local run, and writes the matching lines to output.
+    int execute(String[] args, InputStream input, OutputStream output) {
+        String pattern = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-E".equals(args[i]) && i + 1 < args.length) {
+                pattern = args[++i];
+            }
+        }
+        if (pattern == null) return 2;
+
+        try {
+            RegexMatcher matcher = compile(pattern);
+            PrintStream lines = new PrintStream(output);
+            int status = new ParallelGrep((line, caps) -> matcher.find(line, caps) >= 0, false, false, -1, false)
+                    .run(List.of(), input, lines);
+            lines.flush();
+            return status;
+        } catch (IOException e) {
+            return 2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 2;
+        } catch (RuntimeException | StackOverflowError e) {
+            // A bad pattern or a runaway match fails this request, not the connection
+            if (RegexMatcher.DEBUG) e.printStackTrace();
+            return 2;
+        }
+    }
+
+    private RegexMatcher compile(String pattern) {
+        RegexMatcher cached = cache.get(pattern);
+        if (cached != null) return cached;
+        if (cache.size() >= MAX_CACHED_PATTERNS) cache.clear();
+        return cache.computeIfAbsent(pattern, RegexMatcher::new);
+    }
+
+    public static int forward(Path socketPath, String[] args, InputStream stdin, OutputStream stdout) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            writeField(out, Integer.toString(args.length));
+            for (String a : args) writeField(out, a);
+            stdin.transferTo(out);
+            out.flush();
+            channel.shutdownOutput();
+
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+            StringBuilder status = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) throw new EOFException("grep server closed the connection");
+                status.append((char) b);
+            }
+            in.transferTo(stdout);
+            stdout.flush();
+            return Integer.parseInt(status.toString());
+        }
+    }
+
+    private static void writeField(OutputStream out, String field) throws IOException {
+        out.write(field.getBytes(StandardCharsets.UTF_8));
+        out.write(0);
+    }
+}
@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+// Cuts a character stream into blocks that end just after a '\n' (or at the end of input),
+// so a multiline matcher can scan a large input one block at a time instead of holding all
+// of it. A block is handed out once the buffer is full or the next read would block; the
+// incomplete last line is carried over, and a line longer than the buffer grows it.
+public class LineBlockReader {
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final Reader in;
+    private char[] buf;
+    private int len = 0;
+    // Index of the last '\n' in buf[0, scanned), or -1
+    private int lastNewline = -1;
+    private int scanned = 0;
+    private boolean eof = false;
+
+    public LineBlockReader(Reader in) {
+        this(in, BLOCK_SIZE);
+    }
+
+    LineBlockReader(Reader in, int blockSize) {
+        this.in = in;
+        this.buf = new char[blockSize];
+    }
+
+    // Returns the next block, or null at the end of input.
+    public String next() throws IOException {
+        while (!eof) {
+            for (; scanned < len; scanned++) {
+                if (buf[scanned] == '\n') lastNewline = scanned;
+            }
+            if (lastNewline >= 0 && (len == buf.length || !in.ready())) return take(lastNewline + 1);
+            if (len == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+
+            int n = in.read(buf, len, buf.length - len);
+            if (n < 0) {
+                eof = true;
+            } else {
+                len += n;
+            }
+        }
+        return len == 0 ? null : take(len);
+    }
+
+    private String take(int n) {
+        String block = new String(buf, 0, n);
+        System.arraycopy(buf, n, buf, 0, len - n);
+        len -= n;
+        // Everything kept is after the last newline, so it has been scanned and holds none
+        scanned = len;
+        lastNewline = -1;
+        return block;
+    }
+}
@@ -0,0 +1,67 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class LineSplitter {
+    public interface LineHandler {
+        // Return false to stop splitting.
+        boolean onLine(String line, long lineNumber, long byteOffset);
+    }
+
+    private byte[] partial = new byte[8192];
+    private int partialLen = 0;
+    private long lineNumber = 1;
+    private long lineOffset = 0;
+
+    public boolean feed(byte[] buf, int off, int len, LineHandler handler) {
+        int end = off + len;
+        int lineStart = off;
+        for (int k = off; k < end; k++) {
+            if (buf[k] != '\n') continue;
+
+            long lineLen = partialLen + (k - lineStart);
+            String line;
+            if (partialLen > 0) {
+                append(buf, lineStart, k - lineStart);
+                line = new String(partial, 0, partialLen, StandardCharsets.UTF_8);
+                partialLen = 0;
+            } else {
+                line = new String(buf, lineStart, k - lineStart, StandardCharsets.UTF_8);
+            }
+            long offset = lineOffset;
+            lineOffset += lineLen + 1;
+            lineStart = k + 1;
+            if (!handler.onLine(line, lineNumber++, offset)) return false;
+        }
+        // Carry the incomplete last line over to the next read
+        append(buf, lineStart, end - lineStart);
+        return true;
+    }
+
+    public boolean finish(LineHandler handler) {
+        if (partialLen == 0) return true;
+        String line = new String(partial, 0, partialLen, StandardCharsets.UTF_8);
+        long offset = lineOffset;
+        lineOffset += partialLen;
+        partialLen = 0;
+        return handler.onLine(line, lineNumber++, offset);
+    }
+
+    public void reset() {
+        partialLen = 0;
+        lineNumber = 1;
+        lineOffset = 0;
+    }
+
+    public int pendingBytes() {
+        return partialLen;
+    }
+
+    private void append(byte[] buf, int off, int len) {
+        if (len <= 0) return;
+        if (partialLen + len > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLen + len));
+        }
+        System.arraycopy(buf, off, partial, partialLen, len);
+        partialLen += len;
+    }
+}
@@ -1,31 +1,361 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Main {
+    // Bytes of input the planner looks at when choosing a strategy
+    private static final int PLANNER_SAMPLE = 64 * 1024;
+
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "compile".equals(args[0])) {
+            if (args.length != 3) {
+                System.err.println("Usage: java Main compile <rules-file> <output.bin>");
+                System.exit(2);
+            }
+            try {
+                PatternSet.compile(Path.of(args[1]), Path.of(args[2]));
+            } catch (IOException e) {
+                System.err.println("grep: " + describe(e));
+                System.exit(2);
+            }
+            return;
+        }
+
         String pattern = null;
+        Path patternsBin = null;
+        boolean follow = false;
+        boolean decompress = false;
+        boolean stats = false;
+        boolean multiline = false;
+        boolean explain = false;
+        CaptureExtractor.Format extract = null;
+        boolean quiet = false;
+        boolean listFiles = false;
+        long maxCount = -1;
+        int maxErrors = -1;
+        Path serverSocket = null;
+        Path clientSocket = null;
+        List<Path> files = new ArrayList<>();
 
         for (int i = 0; i < args.length; i++) {
-            if ("-E".equals(args[i]) && i + 1 < args.length) {
+            if ("--server".equals(args[i]) && i + 1 < args.length) {
+                serverSocket = Path.of(args[++i]);
+            } else if ("--client".equals(args[i]) && i + 1 < args.length) {
+                clientSocket = Path.of(args[++i]);
+            } else if ("-E".equals(args[i]) && i + 1 < args.length) {
                 pattern = args[++i];
-                break;
+            } else if ("--patterns-bin".equals(args[i]) && i + 1 < args.length) {
+                patternsBin = Path.of(args[++i]);
+            } else if ("-z".equals(args[i]) || "--decompress".equals(args[i])) {
+                decompress = true;
+            } else if ("--max-errors".equals(args[i]) && i + 1 < args.length) {
+                maxErrors = (int) count("--max-errors", args[++i], Integer.MAX_VALUE);
+            } else if ("--multiline".equals(args[i])) {
+                multiline = true;
+            } else if ("--extract".equals(args[i]) && i + 1 < args.length) {
+                extract = extractFormat(args[++i]);
+            } else if ("-q".equals(args[i]) || "--quiet".equals(args[i])) {
+                quiet = true;
+            } else if ("-l".equals(args[i]) || "--files-with-matches".equals(args[i])) {
+                listFiles = true;
+            } else if ("-m".equals(args[i]) && i + 1 < args.length) {
+                maxCount = count("-m", args[++i], Long.MAX_VALUE);
+            } else if ("--explain".equals(args[i])) {
+                explain = true;
+            } else if ("--stats".equals(args[i])) {
+                stats = true;
+            } else if ("--follow".equals(args[i])) {
+                follow = true;
+            } else {
+                files.add(Path.of(args[i]));
+            }
+        }
+
+        if (serverSocket != null) {
+            try {
+                new GrepServer(serverSocket).serve();
+            } catch (IOException e) {
+                System.err.println("grep: " + describe(e));
+                System.exit(2);
             }
+            return;
+        }
+        if (clientSocket != null) {
+            // The server only matches -E against the forwarded stdin; -z is decoded here
+            String unsupported = firstUnforwardable(args);
+            if (unsupported != null || pattern == null) {
+                System.err.println("grep: --client supports only -E <pattern> and -z"
+                        + (unsupported != null ? ", not " + unsupported : ""));
+                System.exit(2);
+            }
+        }
+        InputStream stdin = System.in;
+        try {
+            // Sniffing reads stdin, so only do it when stdin is the input
+            if (decompress && (clientSocket != null || files.isEmpty())) {
+                stdin = DecompressingInputStream.open(System.in);
+            }
+            if (clientSocket != null) {
+                System.exit(GrepServer.forward(clientSocket, new String[] { "-E", pattern }, stdin, System.out));
+            }
+        } catch (IOException e) {
+            // A corrupt or truncated archive is an error, not a non-match
+            System.err.println("grep: " + describe(e));
+            System.exit(2);
+        }
+
+        if ((pattern == null && patternsBin == null) || (follow && (pattern == null || files.isEmpty()))) {
+            System.err.println("Usage: java Main -E \"<pattern>\" [-q] [-l] [-m NUM] [-z] [--max-errors <k>] [--patterns-bin <file.bin>] [--explain] [--stats] [<file>...]");
+            System.err.println("       java Main --patterns-bin <file.bin> [-q] [-l] [-m NUM] [-z] [--stats] [<file>...]");
+            System.err.println("       java Main -E \"<pattern>\" --multiline|--extract csv|json [-z] [--stats] [<file>...]");
+            System.err.println("       java Main -E \"<pattern>\" --follow <file>...");
+            System.err.println("       java Main compile <rules-file> <output.bin>");
+            System.err.println("       java Main --server <socket>");
+            System.err.println("       java Main --client <socket> -E \"<pattern>\" [-z]");
+            System.exit(2);
         }
 
-        if (pattern == null) {
-            System.err.println("Usage: java Main -E \"<pattern>\"");
+        boolean lineScan = multiline || extract != null;
+        boolean limits = quiet || listFiles || maxCount >= 0;
+        String conflict = null;
+        if (follow && (lineScan || limits || decompress || maxErrors >= 0 || patternsBin != null)) {
+            conflict = "--follow supports only -E and files";
+        } else if (lineScan && (limits || maxErrors >= 0 || patternsBin != null)) {
+            conflict = "--multiline and --extract do not support -q, -l, -m, --max-errors or --patterns-bin";
+        }
+        if (explain && maxErrors >= 0) {
+            conflict = "--explain does not apply to --max-errors, which always runs the approximate matcher";
+        }
+        if (conflict != null) {
+            System.err.println("grep: " + conflict);
             System.exit(2);
         }
 
-        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = br.read()) != -1) sb.append((char) ch);
-        String input = sb.toString();
+        if (stats) PatternMetrics.setEnabled(true);
+        PatternSet patternSet = null;
+        if (patternsBin != null) {
+            try {
+                patternSet = PatternSet.load(patternsBin);
+            } catch (IOException e) {
+                System.err.println("grep: " + describe(e));
+                System.exit(2);
+            }
+        }
+        RegexMatcher matcher = pattern != null ? new RegexMatcher(pattern, lineScan) : null;
+
+        if (explain && (follow || lineScan)) printPlans(matcher, null);
+        if (follow) {
+            new FileFollower(matcher, files, System.out).run();
+            return;
+        }
+
+        if (lineScan) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024);
+            BlockScan scan;
+            if (extract != null) {
+                // Records carry no file name, so several files simply concatenate
+                CaptureExtractor extractor = new CaptureExtractor(matcher, extract, out);
+                scan = (block, prefix) -> extractor.extract(block) > 0;
+            } else {
+                scan = (block, prefix) -> printMatchingLines(matcher, block, prefix, out);
+            }
+            int status = scanBlocks(scan, files, stdin, decompress);
+            printStats(stats);
+            System.exit(status);
+        }
+
+        // Every other mode matches line by line, printing matching lines like grep, and
+        // stops reading as soon as the answer is known
+        ApproximateMatcher approximate = null;
+        if (maxErrors >= 0 && matcher != null) {
+            try {
+                approximate = new ApproximateMatcher(matcher, maxErrors);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+                return;
+            }
+        }
+        if (matcher != null && approximate == null) {
+            if (files.isEmpty()) {
+                try {
+                    stdin = tune(matcher, stdin);
+                } catch (IOException e) {
+                    System.err.println("grep: (standard input): " + describe(e));
+                    System.exit(2);
+                    return;
+                }
+            }
+        }
+        if (explain) printPlans(matcher, patternSet);
+        ParallelGrep.LineTest test = lineTest(matcher, approximate, patternSet);
+        int status = new ParallelGrep(test, quiet, listFiles, maxCount, decompress).run(files, stdin, System.out);
+        printStats(stats);
+        System.exit(status);
+    }
+
+    private static ParallelGrep.LineTest lineTest(RegexMatcher matcher, ApproximateMatcher approximate,
+                                                  PatternSet patternSet) {
+        if (patternSet == null) {
+            if (approximate != null) return (line, caps) -> approximate.matches(line);
+            return (line, caps) -> matcher.find(line, caps) >= 0;
+        }
+        if (matcher == null) return (line, caps) -> patternSet.matchesAny(line);
+        return (line, caps) -> (approximate != null ? approximate.matches(line) : matcher.find(line, caps) >= 0)
+                || patternSet.matchesAny(line);
+    }
+
+    // Re-plans on the first read of stdin. One read rather than a full sample, so a slow
+    // pipe starts producing output without waiting for PLANNER_SAMPLE bytes.
+    private static InputStream tune(RegexMatcher matcher, InputStream stdin) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(stdin, PLANNER_SAMPLE);
+        in.mark(PLANNER_SAMPLE);
+        byte[] sample = new byte[PLANNER_SAMPLE];
+        int n;
+        try {
+            n = Math.max(0, in.read(sample));
+        } finally {
+            in.reset();
+        }
+        matcher.tune(new String(sample, 0, n, StandardCharsets.UTF_8));
+        return in;
+    }
+
+    // --explain: the plan for -E, then the one stored for each --patterns-bin rule
+    private static void printPlans(RegexMatcher matcher, PatternSet patternSet) {
+        if (matcher != null) System.err.println(matcher.plan());
+        if (patternSet == null) return;
+        for (int i = 0; i < patternSet.size(); i++) {
+            RegexMatcher rule = patternSet.get(i);
+            System.err.println("rule " + (i + 1) + ": " + rule.source());
+            System.err.println(rule.plan());
+        }
+    }
+
+    private static void printStats(boolean stats) {
+        if (!stats) return;
+        for (PatternMetrics.Snapshot s : PatternMetrics.snapshot().values()) System.err.println(s);
+    }
+
+    private static CaptureExtractor.Format extractFormat(String value) {
+        for (CaptureExtractor.Format f : CaptureExtractor.Format.values()) {
+            if (f.name().equalsIgnoreCase(value)) return f;
+        }
+        System.err.println("grep: invalid argument '" + value + "' for --extract, expected csv or json");
+        System.err.println("Usage: java Main -E \"<pattern>\" --extract csv|json [-z] [--stats] [<file>...]");
+        System.exit(2);
+        return null;
+    }
+
+    // Parses a non-negative option value, exiting with status 2 if it is not one
+    private static long count(String option, String value, long max) {
+        try {
+            long n = Long.parseLong(value);
+            if (n >= 0 && n <= max) return n;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        System.err.println("grep: invalid argument '" + value + "' for " + option + ", expected a non-negative integer");
+        System.exit(2);
+        return -1;
+    }
+
+    private static String describe(IOException e) {
+        if (e instanceof NoSuchFileException) return e.getMessage() + ": " + reason(e);
+        return reason(e);
+    }
+
+    // describe() without the file name a NoSuchFileException carries
+    private static String reason(IOException e) {
+        if (e instanceof NoSuchFileException) return "No such file or directory";
+        if (e.getMessage() != null) return e.getMessage();
+        return e instanceof EOFException ? "unexpected end of input" : e.getClass().getSimpleName();
+    }
+
+    private static String firstUnforwardable(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (("--client".equals(args[i]) || "-E".equals(args[i])) && i + 1 < args.length) {
+                i++;
+            } else if (!"-z".equals(args[i]) && !"--decompress".equals(args[i])) {
+                return args[i];
+            }
+        }
+        return null;
+    }
+
+    private interface BlockScan {
+        // prefix is "name:" when several files are searched, otherwise null. Returns
+        // whether anything in the block matched.
+        boolean scan(String block, String prefix) throws IOException;
+    }
 
-        RegexMatcher matcher = new RegexMatcher(pattern);
-        boolean ok = matcher.matches(input);
+    // Reads each input in blocks that end on a line boundary and runs one scan per block,
+    // so memory stays bounded by the block size rather than the input size. Returns the
+    // grep exit status. stdin is read as given; -z applies to files here.
+    private static int scanBlocks(BlockScan scan, List<Path> files, InputStream stdin, boolean decompress)
+            throws IOException {
+        boolean matched = false;
+        boolean failed = false;
+        for (int f = 0; f < Math.max(1, files.size()); f++) {
+            String name = files.isEmpty() ? "(standard input)" : files.get(f).toString();
+            String prefix = files.size() > 1 ? name + ":" : null;
+            InputStream in = null;
+            try {
+                in = files.isEmpty() ? stdin : Files.newInputStream(files.get(f));
+                if (decompress && !files.isEmpty()) in = DecompressingInputStream.open(in);
+                LineBlockReader blocks = new LineBlockReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                while (true) {
+                    String block;
+                    try {
+                        block = blocks.next();
+                    } catch (IOException e) {
+                        failed = true;
+                        System.err.println("grep: " + name + ": " + reason(e));
+                        break;
+                    }
+                    if (block == null) break;
+                    if (scan.scan(block, prefix)) matched = true;
+                }
+            } catch (IOException e) {
+                // Opening the file or sniffing its compression failed
+                failed = true;
+                System.err.println("grep: " + name + ": " + reason(e));
+            } finally {
+                if (in != null && !files.isEmpty()) in.close();
+            }
+        }
+        return failed ? 2 : matched ? 0 : 1;
+    }
 
-        System.exit(ok ? 0 : 1);
+    private static boolean printMatchingLines(RegexMatcher matcher, String block, String prefix, Writer out)
+            throws IOException {
+        boolean[] any = { false };
+        IOException[] failure = { null };
+        matcher.scanLines(block, (lineStart, lineEnd, matchStart, caps) -> {
+            any[0] = true;
+            try {
+                if (prefix != null) out.write(prefix);
+                out.write(block, lineStart, lineEnd - lineStart);
+                out.write('\n');
+                return true;
+            } catch (IOException e) {
+                failure[0] = e;
+                return false;
+            }
+        });
+        out.flush();
+        if (failure[0] != null) throw failure[0];
+        return any[0];
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,30 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("codegrep.Match")
+@Label("Regex Match")
+@Category("codeGrep")
+@Description("A RegexMatcher.find call slower than the threshold, e.g. heavy backtracking")
+@StackTrace(false)
+@Threshold("1 ms")
+class MatchEvent extends jdk.jfr.Event {
+    @Label("Pattern")
+    String pattern;
+
+    @Label("Input Length")
+    @Description("Length of the input in chars")
+    long inputLength;
+
+    @Label("Matched")
+    boolean matched;
+
+    @Label("Start Attempts")
+    long startAttempts;
+
+    @Label("Engine Tier")
+    String tier;
+}
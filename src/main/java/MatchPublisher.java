@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Streams the matching lines of one source as MatchRecords. The scan runs on the
+// executor and only reads further input while the subscriber has outstanding demand.
+public class MatchPublisher implements Flow.Publisher<MatchRecord> {
+    private static final int READ_SIZE = 64 * 1024;
+
+    private interface Opener {
+        InputStream open() throws IOException;
+    }
+
+    private final RegexMatcher matcher;
+    private final String source;
+    private final Opener opener;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    public MatchPublisher(RegexMatcher matcher, String source, InputStream in, Executor executor) {
+        this(matcher, source, () -> in, executor);
+    }
+
+    public MatchPublisher(RegexMatcher matcher, Path file, Executor executor) {
+        this(matcher, file.toString(), () -> Files.newInputStream(file), executor);
+    }
+
+    // The scan parks in wait() while there is no demand, so it gets a thread of its own
+    // rather than one borrowed from a shared pool. A platform thread, because waiting
+    // inside synchronized pins a virtual thread's carrier.
+    public MatchPublisher(RegexMatcher matcher, Path file) {
+        this(matcher, file, MatchPublisher::startScanThread);
+    }
+
+    private static void startScanThread(Runnable scan) {
+        Thread t = new Thread(scan, "grep-publisher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private MatchPublisher(RegexMatcher matcher, String source, Opener opener, Executor executor) {
+        this.matcher = matcher;
+        this.source = source;
+        this.opener = opener;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super MatchRecord> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override public void request(long n) { }
+                @Override public void cancel() { }
+            });
+            subscriber.onError(new IllegalStateException("MatchPublisher supports a single subscriber"));
+            return;
+        }
+        ScanSubscription subscription = new ScanSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        executor.execute(subscription::scan);
+    }
+
+    private final class ScanSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super MatchRecord> subscriber;
+        private final Object lock = new Object();
+        private long demand = 0;
+        private volatile boolean cancelled = false;
+        private volatile Throwable invalidRequest;
+        private InputStream in;
+
+        ScanSubscription(Flow.Subscriber<? super MatchRecord> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (lock) {
+                if (n <= 0) {
+                    // Rule 3.9: reported by the scan right away, even if no later line matches
+                    if (invalidRequest == null) {
+                        invalidRequest = new IllegalArgumentException("request must be positive, got " + n);
+                    }
+                    closeQuietly();
+                } else {
+                    demand += n;
+                    if (demand < 0) demand = Long.MAX_VALUE;
+                }
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            synchronized (lock) {
+                // Closing the source unblocks a scan stuck in read()
+                closeQuietly();
+                lock.notifyAll();
+            }
+        }
+
+        void scan() {
+            try {
+                synchronized (lock) {
+                    if (cancelled) return;
+                    in = opener.open();
+                }
+                LineSplitter splitter = new LineSplitter();
+                Captures caps = new Captures();
+                LineSplitter.LineHandler handler = (line, lineNumber, offset) -> {
+                    int start = matcher.find(line, caps);
+                    if (start < 0) return true;
+                    MatchRecord record = new MatchRecord(source, lineNumber,
+                            offset + utf8Length(line, start), line, spans(caps, start));
+                    return emit(record);
+                };
+
+                byte[] buf = new byte[READ_SIZE];
+                boolean running = true;
+                int n;
+                while (running && !stopped() && (n = in.read(buf)) != -1) {
+                    running = splitter.feed(buf, 0, n, handler);
+                }
+                if (running && !stopped()) running = splitter.finish(handler);
+                if (failInvalidRequest()) return;
+                if (running && !cancelled) subscriber.onComplete();
+            } catch (Throwable t) {
+                // A read failing because request(n <= 0) closed the source reports that instead
+                if (failInvalidRequest()) return;
+                if (!cancelled) subscriber.onError(t);
+            } finally {
+                synchronized (lock) {
+                    closeQuietly();
+                }
+            }
+        }
+
+        private boolean emit(MatchRecord record) {
+            synchronized (lock) {
+                while (demand == 0 && !stopped()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        cancelled = true;
+                    }
+                }
+                if (stopped()) return false;
+                if (demand != Long.MAX_VALUE) demand--;
+            }
+            subscriber.onNext(record);
+            return !cancelled;
+        }
+
+        private boolean stopped() {
+            return cancelled || invalidRequest != null;
+        }
+
+        // Signals onError for an invalid request once, unless the subscriber cancelled first
+        private boolean failInvalidRequest() {
+            synchronized (lock) {
+                if (invalidRequest == null || cancelled) return false;
+                cancelled = true;
+            }
+            subscriber.onError(invalidRequest);
+            return true;
+        }
+
+        private void closeQuietly() {
+            if (in == null) return;
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private int[] spans(Captures caps, int start) {
+            int groups = matcher.groupCount();
+            int[] spans = new int[2 * (groups + 1)];
+            spans[0] = start;
+            spans[1] = caps.getMatchEnd();
+            for (int g = 1; g <= groups; g++) {
+                Captures.Span s = caps.getSpan(g);
+                spans[2 * g] = s != null ? s.start : -1;
+                spans[2 * g + 1] = s != null ? s.end : -1;
+            }
+            return spans;
+        }
+    }
+
+    private static int utf8Length(String s, int end) {
+        int bytes = 0;
+        for (int k = 0; k < end; k++) {
+            char c = s.charAt(k);
+            if (c < 0x80) bytes += 1;
+            else if (c < 0x800) bytes += 2;
+            else if (Character.isHighSurrogate(c)) bytes += 4;
+            else if (!Character.isLowSurrogate(c)) bytes += 3;
+        }
+        return bytes;
+    }
+}
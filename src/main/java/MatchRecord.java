@@ -0,0 +1,26 @@
+public final class MatchRecord {
+    public final String source;
+    public final long lineNumber;
+    // Byte offset of the match start within the source
+    public final long byteOffset;
+    public final String line;
+    // Char spans within line: [start0, end0, start1, end1, ...], group 0 being the whole match;
+    // -1 for groups that did not participate
+    public final int[] groupSpans;
+
+    public MatchRecord(String source, long lineNumber, long byteOffset, String line, int[] groupSpans) {
+        this.source = source;
+        this.lineNumber = lineNumber;
+        this.byteOffset = byteOffset;
+        this.line = line;
+        this.groupSpans = groupSpans;
+    }
+
+    public int groupStart(int idx) { return groupSpans[2 * idx]; }
+    public int groupEnd(int idx) { return groupSpans[2 * idx + 1]; }
+
+    @Override
+    public String toString() {
+        return source + ":" + lineNumber + ":" + byteOffset + ":" + line;
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Line-oriented grep over stdin or many files, one worker per file. Each source stops
+// reading as soon as its result is decided (-l, -m NUM); with -q the first match anywhere
+// cancels every worker and closes every open input.
+public class ParallelGrep {
+    private static final int READ_SIZE = 64 * 1024;
+    // Output a file may hold back while an earlier file is still being searched
+    private static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+
+    public interface LineTest {
+        // caps belongs to the calling worker and may be reused between lines.
+        boolean matches(String line, Captures caps);
+    }
+
+    private final LineTest test;
+    private final boolean quiet;
+    private final boolean listFiles;
+    private final long maxCount;
+    private final boolean decompress;
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private final Set<InputStream> openInputs = ConcurrentHashMap.newKeySet();
+
+    private static final class Result {
+        final OutputStream output;
+        boolean matched = false;
+        boolean failed = false;
+
+        Result(OutputStream output) { this.output = output; }
+    }
+
+    public ParallelGrep(LineTest test, boolean quiet, boolean listFiles, long maxCount, boolean decompress) {
+        this.test = test;
+        this.quiet = quiet;
+        this.listFiles = listFiles;
+        this.maxCount = maxCount;
+        this.decompress = decompress;
+    }
+
+    // Returns the grep exit status: 2 if an input could not be read (unless -q found a
+    // match), otherwise 0 if anything matched and 1 if nothing did.
+    // stdin is read as given; -z decompression of files happens per worker.
+    public int run(List<Path> files, InputStream stdin, PrintStream out) throws IOException, InterruptedException {
+        if (maxCount == 0) return 1;
+
+        List<Result> results = new ArrayList<>();
+        BufferedOutputStream direct = new BufferedOutputStream(out, READ_SIZE);
+        if (files.size() <= 1) {
+            // A single source streams straight to out
+            Source source = files.isEmpty() ? () -> stdin : () -> Files.newInputStream(files.get(0));
+            String name = files.isEmpty() ? "(standard input)" : files.get(0).toString();
+            results.add(search(name, source, false, direct, !files.isEmpty() && decompress));
+        } else {
+            ExecutorService workers;
+            if (quiet) {
+                // -q writes nothing, so workers never wait on each other; a thread per file
+                // keeps one blocked input (a FIFO, a stalled mount) from delaying the rest
+                workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("grep-worker-", 0).factory());
+            } else {
+                int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+                workers = Executors.newFixedThreadPool(threads, r -> {
+                    Thread t = new Thread(r, "grep-worker");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            OrderedOutput ordered = new OrderedOutput(direct, files.size());
+            // Results are taken as they complete, so with -q a match in any file ends the
+            // run even while an earlier file is still blocked in a read
+            CompletionService<Result> pending = new ExecutorCompletionService<>(workers);
+            for (int i = 0; i < files.size(); i++) {
+                Path file = files.get(i);
+                OrderedOutput.Slot slot = ordered.slot(i);
+                pending.submit(() -> {
+                    try {
+                        return search(file.toString(), () -> Files.newInputStream(file), true, slot, decompress);
+                    } finally {
+                        slot.finish();
+                    }
+                });
+            }
+            for (int i = 0; i < files.size(); i++) {
+                Result r;
+                try {
+                    r = pending.take().get();
+                } catch (ExecutionException e) {
+                    r = new Result(null);
+                    r.failed = true;
+                    System.err.println("grep: " + e.getCause().getMessage());
+                }
+                results.add(r);
+                if (quiet && r.matched) break;
+            }
+            workers.shutdownNow();
+        }
+        direct.flush();
+
+        boolean matched = false, failed = false;
+        for (Result r : results) {
+            matched |= r.matched;
+            failed |= r.failed;
+        }
+        // Like grep, a read error outweighs a match unless -q was given
+        if (quiet && matched) return 0;
+        if (failed) return 2;
+        return matched ? 0 : 1;
+    }
+
+    // Keeps the output of several files in argument order. The file that is next in order
+    // writes straight through; a later file buffers up to MAX_PENDING_OUTPUT, then its
+    // worker waits for its turn, and a worker that finishes early also waits to hand its
+    // buffer over. Workers start in file order, so the file in front is always running and
+    // never waits, and at most one buffer per worker thread is held at a time.
+    private static final class OrderedOutput {
+        private final OutputStream out;
+        private final Slot[] slots;
+        private int head = 0;
+
+        OrderedOutput(OutputStream out, int count) {
+            this.out = out;
+            this.slots = new Slot[count];
+            for (int i = 0; i < count; i++) slots[i] = new Slot(i);
+        }
+
+        Slot slot(int i) { return slots[i]; }
+
+        final class Slot extends OutputStream {
+            private final int index;
+            private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+            Slot(int index) { this.index = index; }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (OrderedOutput.this) {
+                    if (index == head || pending.size() >= MAX_PENDING_OUTPUT) {
+                        awaitTurn();
+                        out.write(b, off, len);
+                    } else {
+                        pending.write(b, off, len);
+                    }
+                }
+            }
+
+            // Writes what is still buffered and passes the turn to the next file.
+            void finish() throws IOException {
+                synchronized (OrderedOutput.this) {
+                    awaitTurn();
+                    head++;
+                    out.flush();
+                    OrderedOutput.this.notifyAll();
+                }
+            }
+
+            private void awaitTurn() throws IOException {
+                while (index != head) {
+                    try {
+                        OrderedOutput.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting to write output");
+                    }
+                }
+                pending.writeTo(out);
+                pending.reset();
+            }
+        }
+    }
+
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private Result search(String name, Source source, boolean prefixNames, OutputStream output,
+                          boolean decode) throws IOException {
+        Result result = new Result(output);
+        if (cancelled.get()) return result;
+
+        InputStream in = null;
+        IOException[] writeFailure = { null };
+        try {
+            in = source.open();
+            if (decode) in = DecompressingInputStream.open(in);
+            openInputs.add(in);
+            // cancel() may have run between the check above and registering the stream
+            if (cancelled.get()) return result;
+
+            LineSplitter splitter = new LineSplitter();
+            Captures caps = new Captures();
+            long[] count = { 0 };
+            LineSplitter.LineHandler handler = (line, lineNumber, offset) -> {
+                if (cancelled.get()) return false;
+                if (!test.matches(line, caps)) return true;
+                result.matched = true;
+                if (quiet) {
+                    cancel();
+                    return false;
+                }
+                try {
+                    if (listFiles) {
+                        writeLine(result.output, name);
+                        return false;
+                    }
+                    writeLine(result.output, prefixNames ? name + ":" + line : line);
+                } catch (IOException e) {
+                    writeFailure[0] = e;
+                    return false;
+                }
+                return maxCount < 0 || ++count[0] < maxCount;
+            };
+
+            byte[] buf = new byte[READ_SIZE];
+            boolean running = true;
+            while (running && !cancelled.get()) {
+                // Lines matched so far go out before a read that may wait on a slow pipe
+                if (in.available() == 0 && !flush(result.output, writeFailure)) break;
+                int n = in.read(buf);
+                if (n == -1) {
+                    if (!cancelled.get()) splitter.finish(handler);
+                    break;
+                }
+                running = splitter.feed(buf, 0, n, handler);
+            }
+        } catch (IOException e) {
+            // A read failing because cancel() closed the stream is not an error
+            if (!cancelled.get()) {
+                result.failed = true;
+                String reason = e instanceof NoSuchFileException ? "No such file or directory"
+                        : e instanceof EOFException && e.getMessage() == null ? "unexpected end of input"
+                        : e.getMessage();
+                System.err.println("grep: " + name + ": " + reason);
+            }
+        } finally {
+            if (in != null) {
+                openInputs.remove(in);
+                closeQuietly(in);
+            }
+        }
+        // Output errors (e.g. a closed pipe) are not the input's fault; let the caller see them
+        if (writeFailure[0] != null) throw writeFailure[0];
+        return result;
+    }
+
+    private void cancel() {
+        if (!cancelled.compareAndSet(false, true)) return;
+        for (InputStream in : openInputs) closeQuietly(in);
+    }
+
+    private static boolean flush(OutputStream out, IOException[] failure) {
+        try {
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            failure[0] = e;
+            return false;
+        }
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
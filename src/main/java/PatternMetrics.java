@@ -0,0 +1,105 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class PatternMetrics {
+    public enum Tier {
+        BACKTRACK, PREFILTERED_BACKTRACK, REVERSE_SUFFIX, LITERAL, SHIFT_AND, APPROXIMATE, MULTILINE_BACKTRACK
+    }
+
+    // Off by default; when off RegexMatcher holds no metrics at all and every hook is a null check.
+    private static volatile boolean enabled = Boolean.getBoolean("grep.metrics");
+    private static final ConcurrentHashMap<String, PatternMetrics> REGISTRY = new ConcurrentHashMap<>();
+
+    final String pattern;
+    final LongAdder calls = new LongAdder();
+    final LongAdder matches = new LongAdder();
+    final LongAdder charsScanned = new LongAdder();
+    final LongAdder startAttempts = new LongAdder();
+    final LongAdder backtrackSteps = new LongAdder();
+    final LongAdder capturesCopies = new LongAdder();
+    final LongAdder prefilterCandidates = new LongAdder();
+    final LongAdder prefilterHits = new LongAdder();
+    final LongAdder[] tierUses = new LongAdder[Tier.values().length];
+
+    private PatternMetrics(String pattern) {
+        this.pattern = pattern;
+        for (int i = 0; i < tierUses.length; i++) tierUses[i] = new LongAdder();
+    }
+
+    // Plain counts for one find or scan call on one thread; published to the adders once
+    // the call returns, so the backtracker never touches shared state.
+    static final class Counters {
+        long startAttempts;
+        long backtrackSteps;
+        long capturesCopies;
+
+        void publishTo(PatternMetrics m) {
+            m.startAttempts.add(startAttempts);
+            m.backtrackSteps.add(backtrackSteps);
+            m.capturesCopies.add(capturesCopies);
+        }
+    }
+
+    public static boolean isEnabled() { return enabled; }
+
+    // Only affects matchers constructed afterwards.
+    public static void setEnabled(boolean on) { enabled = on; }
+
+    static PatternMetrics forPattern(String pattern) {
+        if (!enabled) return null;
+        return REGISTRY.computeIfAbsent(pattern, PatternMetrics::new);
+    }
+
+    public static Map<String, Snapshot> snapshot() {
+        Map<String, Snapshot> out = new TreeMap<>();
+        for (PatternMetrics m : REGISTRY.values()) out.put(m.pattern, new Snapshot(m));
+        return out;
+    }
+
+    public static void reset() {
+        REGISTRY.clear();
+    }
+
+    public static final class Snapshot {
+        public final String pattern;
+        public final long calls;
+        public final long matches;
+        public final long charsScanned;
+        public final long startAttempts;
+        public final long backtrackSteps;
+        public final long capturesCopies;
+        public final long prefilterCandidates;
+        public final long prefilterHits;
+        public final Map<Tier, Long> tierUses = new TreeMap<>();
+
+        Snapshot(PatternMetrics m) {
+            this.pattern = m.pattern;
+            this.calls = m.calls.sum();
+            this.matches = m.matches.sum();
+            this.charsScanned = m.charsScanned.sum();
+            this.startAttempts = m.startAttempts.sum();
+            this.backtrackSteps = m.backtrackSteps.sum();
+            this.capturesCopies = m.capturesCopies.sum();
+            this.prefilterCandidates = m.prefilterCandidates.sum();
+            this.prefilterHits = m.prefilterHits.sum();
+            for (Tier t : Tier.values()) {
+                long n = m.tierUses[t.ordinal()].sum();
+                if (n > 0) tierUses.put(t, n);
+            }
+        }
+
+        public double prefilterHitRate() {
+            return prefilterCandidates == 0 ? 0.0 : (double) prefilterHits / prefilterCandidates;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: calls=%d matches=%d chars=%d attempts=%d backtracks=%d copies=%d"
+                            + " prefilter=%d/%d (%.1f%%) tiers=%s",
+                    pattern, calls, matches, charsScanned, startAttempts, backtrackSteps, capturesCopies,
+                    prefilterHits, prefilterCandidates, 100 * prefilterHitRate(), tierUses);
+        }
+    }
+}
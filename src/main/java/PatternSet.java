@@ -0,0 +1,292 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Precompiled rule file. Layout (big endian):
+//   header: int MAGIC, int VERSION, int count
+//   index:  count x { int offset, int leadingLiteral, int groupCount, byte flags, byte tier }
+//   bodies: per pattern { string requiredLiteral, string source, string planLiteral,
+//           string planSuffix, token list }
+// Matchers are decoded lazily from the mapped file with the plan chosen at compile time,
+// and the literal every match must contain lets firstMatch skip patterns whose literal is
+// absent from the input without decoding them, so startup does not grow with the number
+// of rules.
+public class PatternSet {
+    static final int MAGIC = 0x43475053; // "CGPS"
+    static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int INDEX_ENTRY_SIZE = 14;
+    private static final int FLAG_ANCHORED_START = 1;
+    private static final int FLAG_ANCHORED_END = 2;
+    private static final List<String> PRECOMPILED = List.of("plan chosen when the pattern file was compiled");
+
+    private final ByteBuffer data;
+    private final int count;
+    private final AtomicReferenceArray<RegexMatcher> decoded;
+    private final AtomicReferenceArray<String> requiredLiterals;
+
+    private PatternSet(ByteBuffer data, int count) {
+        this.data = data;
+        this.count = count;
+        this.decoded = new AtomicReferenceArray<>(count);
+        this.requiredLiterals = new AtomicReferenceArray<>(count);
+    }
+
+    // Checks the header, that every index entry points inside the file, and that each body
+    // parses to exactly its extent, so a truncated or foreign file fails here rather than
+    // during matching. No matcher is built.
+    public static PatternSet load(Path file) throws IOException {
+        ByteBuffer data;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        int size = data.limit();
+        if (size < HEADER_SIZE || data.getInt(0) != MAGIC) {
+            throw new IOException(file + ": not a compiled pattern file");
+        }
+        int version = data.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(file + ": unsupported compiled pattern version " + version + ", expected " + VERSION);
+        }
+        int count = data.getInt(8);
+        long indexEnd = HEADER_SIZE + (long) INDEX_ENTRY_SIZE * count;
+        if (count < 0 || indexEnd > size) {
+            throw new IOException(file + ": truncated compiled pattern file (index)");
+        }
+        for (int i = 0; i < count; i++) {
+            int entry = indexEntry(i);
+            int start = data.getInt(entry);
+            int end = i + 1 < count ? data.getInt(indexEntry(i + 1)) : size;
+            int tier = data.get(entry + 13);
+            if (start < indexEnd || start > end || end > size || tier < 0 || tier >= PatternMetrics.Tier.values().length) {
+                throw new IOException(file + ": truncated or corrupt compiled pattern file (entry " + i + ")");
+            }
+            ByteBuffer body = data.duplicate();
+            body.limit(end).position(start);
+            try {
+                readBody(body);
+            } catch (RuntimeException e) {
+                throw new IOException(file + ": truncated or corrupt compiled pattern file (entry " + i + ")");
+            }
+            if (body.position() != end) {
+                throw new IOException(file + ": corrupt compiled pattern file (entry " + i + ")");
+            }
+        }
+        return new PatternSet(data, count);
+    }
+
+    public static void compile(Path rulesFile, Path out) throws IOException {
+        List<String> patterns = new ArrayList<>();
+        for (String line : Files.readAllLines(rulesFile)) {
+            if (!line.isEmpty()) patterns.add(line);
+        }
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(out))) {
+            write(patterns, os);
+        }
+    }
+
+    public static void write(List<String> patterns, OutputStream out) throws IOException {
+        List<byte[]> bodies = new ArrayList<>();
+        List<RegexMatcher> matchers = new ArrayList<>();
+        for (String p : patterns) {
+            RegexMatcher m = new RegexMatcher(p);
+            EnginePlanner.Plan plan = m.plan();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(body);
+            writeString(d, EnginePlanner.requiredLiteral(m.tokens()));
+            writeString(d, m.source());
+            writeString(d, plan.literal);
+            writeString(d, plan.suffix);
+            writeTokens(d, m.tokens());
+            d.flush();
+            bodies.add(body.toByteArray());
+            matchers.add(m);
+        }
+
+        DataOutputStream d = new DataOutputStream(out);
+        d.writeInt(MAGIC);
+        d.writeInt(VERSION);
+        d.writeInt(patterns.size());
+        int offset = HEADER_SIZE + INDEX_ENTRY_SIZE * patterns.size();
+        for (int i = 0; i < patterns.size(); i++) {
+            RegexMatcher m = matchers.get(i);
+            d.writeInt(offset);
+            d.writeInt(m.leadingLiteral());
+            d.writeInt(m.groupCount());
+            d.writeByte((m.anchoredStart() ? FLAG_ANCHORED_START : 0) | (m.anchoredEnd() ? FLAG_ANCHORED_END : 0));
+            d.writeByte(m.plan().tier.ordinal());
+            offset += bodies.get(i).length;
+        }
+        for (byte[] body : bodies) d.write(body);
+        d.flush();
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public RegexMatcher get(int i) {
+        RegexMatcher m = decoded.get(i);
+        if (m == null) {
+            m = decode(i);
+            // Two threads may decode the same entry; either result is equivalent
+            decoded.compareAndSet(i, null, m);
+        }
+        return m;
+    }
+
+    // Index of the first pattern that matches, or -1.
+    public int firstMatch(String input) {
+        for (int i = 0; i < count; i++) {
+            String required = requiredLiteral(i);
+            if (required.isEmpty()) {
+                int leading = data.getInt(indexEntry(i) + 4);
+                if (leading >= 0 && input.indexOf(leading) < 0) continue;
+            } else if (!input.contains(required)) {
+                continue;
+            }
+            if (get(i).matches(input)) return i;
+        }
+        return -1;
+    }
+
+    public boolean matchesAny(String input) {
+        return firstMatch(input) >= 0;
+    }
+
+    private static int indexEntry(int i) {
+        return HEADER_SIZE + INDEX_ENTRY_SIZE * i;
+    }
+
+    private String requiredLiteral(int i) {
+        String literal = requiredLiterals.get(i);
+        if (literal == null) {
+            ByteBuffer in = data.duplicate();
+            in.position(data.getInt(indexEntry(i)));
+            literal = readString(in);
+            requiredLiterals.set(i, literal);
+        }
+        return literal;
+    }
+
+    private RegexMatcher decode(int i) {
+        int entry = indexEntry(i);
+        ByteBuffer in = data.duplicate();
+        in.position(data.getInt(entry));
+        int leadingLiteral = data.getInt(entry + 4);
+        int groupCount = data.getInt(entry + 8);
+        int flags = data.get(entry + 12);
+        PatternMetrics.Tier tier = PatternMetrics.Tier.values()[data.get(entry + 13)];
+
+        readString(in); // required literal, already in requiredLiterals
+        String source = readString(in);
+        String literal = readString(in);
+        String suffix = readString(in);
+        List<Token> tokens = readTokens(in);
+        return new RegexMatcher(source, tokens,
+                (flags & FLAG_ANCHORED_START) != 0, (flags & FLAG_ANCHORED_END) != 0,
+                leadingLiteral, groupCount, new EnginePlanner.Plan(tier, literal, suffix, PRECOMPILED));
+    }
+
+    // Reads one body, failing on anything decode() could not use
+    private static void readBody(ByteBuffer in) {
+        String required = readString(in);
+        String source = readString(in);
+        if (required == null || source == null) throw new IllegalStateException("missing string");
+        readString(in);
+        readString(in);
+        readTokens(in);
+    }
+
+    private static void writeTokens(DataOutputStream d, List<Token> tokens) throws IOException {
+        d.writeInt(tokens.size());
+        for (Token t : tokens) {
+            d.writeByte(t.type.ordinal());
+            d.writeByte(t.quantifier.ordinal());
+            d.writeBoolean(t.capturing);
+            d.writeInt(t.groupIndex);
+            switch (t.type) {
+                case BACKREF:
+                    d.writeInt(t.backrefIndex);
+                    break;
+                case GROUP:
+                    writeTokens(d, t.groupTokens);
+                    break;
+                case ALTERNATION:
+                    d.writeInt(t.alternatives.size());
+                    for (List<Token> branch : t.alternatives) writeTokens(d, branch);
+                    break;
+                default:
+                    writeString(d, t.text);
+                    break;
+            }
+        }
+    }
+
+    private static List<Token> readTokens(ByteBuffer in) {
+        int n = in.getInt();
+        List<Token> tokens = new ArrayList<>(n);
+        for (int k = 0; k < n; k++) {
+            Token.TokenType type = Token.TokenType.values()[in.get()];
+            Token.Quantifier quantifier = Token.Quantifier.values()[in.get()];
+            boolean capturing = in.get() != 0;
+            int groupIndex = in.getInt();
+
+            Token t;
+            switch (type) {
+                case BACKREF:
+                    t = new Token(in.getInt());
+                    break;
+                case GROUP:
+                    t = new Token(readTokens(in), Token.TokenType.GROUP);
+                    break;
+                case ALTERNATION: {
+                    int branches = in.getInt();
+                    List<List<Token>> alternatives = new ArrayList<>(branches);
+                    for (int b = 0; b < branches; b++) alternatives.add(readTokens(in));
+                    t = new Token(alternatives);
+                    break;
+                }
+                default:
+                    t = new Token(type, readString(in));
+                    break;
+            }
+            t.quantifier = quantifier;
+            t.capturing = capturing;
+            t.groupIndex = groupIndex;
+            tokens.add(t);
+        }
+        return tokens;
+    }
+
+    // A null string is stored with length -1
+    private static void writeString(DataOutputStream d, String s) throws IOException {
+        if (s == null) {
+            d.writeInt(-1);
+            return;
+        }
+        d.writeInt(s.length());
+        d.writeChars(s);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == -1) return null;
+        if (length < 0 || length > in.remaining() / 2) throw new BufferUnderflowException();
+        char[] chars = new char[length];
+        for (int k = 0; k < chars.length; k++) chars[k] = in.getChar();
+        return new String(chars);
+    }
+}
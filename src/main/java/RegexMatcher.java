@@ -1,13 +1,44 @@
 import java.util.ArrayList;
 import java.util.List;
 
-public class RegexMatcher {
+public final class RegexMatcher {
+    static final boolean DEBUG = Boolean.getBoolean("grep.debug");
+
+    private final String source;
     private final List<Token> tokens;
     private final boolean anchoredStart;
     private final boolean anchoredEnd;
+    // ^ and $ match at line boundaries inside the input instead of only at its ends
+    private final boolean multiline;
+    // First character every match must start with, or -1; lets find() jump between candidates with indexOf
+    private final int leadingLiteral;
+    private final PatternMetrics metrics;
+    // Chosen on first use, so multiline and structural matchers, which never run a plan, skip it
+    private volatile EnginePlanner.Plan plan;
+    // Bit-parallel automaton, built by the first SHIFT_AND search; that tier depends only on the tokens
+    private volatile ApproximateMatcher automaton;
     private int nextGroupIndex = 1;
 
+    // Runs group bodies for Token; all its state is final after construction, so it is shared
+    private static final RegexMatcher STRUCTURAL = new RegexMatcher("", false, false);
+
+    public interface LineMatchHandler {
+        // Return false to stop scanning.
+        boolean onMatch(int lineStart, int lineEnd, int matchStart, Captures caps);
+    }
+
     public RegexMatcher(String pattern) {
+        this(pattern, false, true);
+    }
+
+    public RegexMatcher(String pattern, boolean multiline) {
+        this(pattern, multiline, true);
+    }
+
+    private RegexMatcher(String pattern, boolean multiline, boolean instrumented) {
+        this.source = pattern;
+        this.multiline = multiline;
+        this.metrics = instrumented ? PatternMetrics.forPattern(pattern) : null;
         boolean aStart = false, aEnd = false;
         if (pattern.startsWith("^")) {
             aStart = true;
@@ -20,8 +51,53 @@ public class RegexMatcher {
         this.anchoredStart = aStart;
         this.anchoredEnd = aEnd;
         this.tokens = tokenize(pattern);
+        this.leadingLiteral = leadingLiteral(this.tokens);
         storeGroupTokens(this.tokens, new Captures());
     }
+
+    // Rebuilds a matcher from parts that PatternSet stored at compile time, skipping the
+    // tokenizer and the planner.
+    RegexMatcher(String source, List<Token> tokens, boolean anchoredStart, boolean anchoredEnd,
+                 int leadingLiteral, int groupCount, EnginePlanner.Plan plan) {
+        this.source = source;
+        this.metrics = PatternMetrics.forPattern(source);
+        this.tokens = tokens;
+        this.anchoredStart = anchoredStart;
+        this.anchoredEnd = anchoredEnd;
+        this.multiline = false;
+        this.leadingLiteral = leadingLiteral;
+        this.nextGroupIndex = groupCount + 1;
+        this.plan = plan;
+    }
+
+    public EnginePlanner.Plan plan() {
+        EnginePlanner.Plan p = plan;
+        if (p == null) {
+            // Threads racing here compute the same plan
+            p = EnginePlanner.plan(this);
+            plan = p;
+        }
+        return p;
+    }
+
+    // Re-plans using statistics from a sample of the input, e.g. its first few KB.
+    public void tune(String sample) {
+        plan = EnginePlanner.plan(this, sample);
+    }
+
+    String source() { return source; }
+    List<Token> tokens() { return tokens; }
+    boolean anchoredStart() { return anchoredStart; }
+    boolean anchoredEnd() { return anchoredEnd; }
+    boolean multiline() { return multiline; }
+    int leadingLiteral() { return leadingLiteral; }
+
+    private static int leadingLiteral(List<Token> tokens) {
+        if (tokens.isEmpty()) return -1;
+        Token first = tokens.get(0);
+        if (first.type != Token.TokenType.CHAR || first.quantifier == Token.Quantifier.ZERO_OR_ONE) return -1;
+        return first.text.charAt(0);
+    }
     
     private void storeGroupTokens(List<Token> tokens, Captures caps) {
         for (Token t : tokens) {
@@ -39,19 +115,174 @@ public class RegexMatcher {
         }
     }
 
+    public int groupCount() {
+        return nextGroupIndex - 1;
+    }
+
     public boolean matches(String input) {
-        if (anchoredStart) {
-            return matchesAt(input, 0);
-        } else {
-            for (int i = 0; i <= input.length(); i++) {
-                if (matchesAt(input, i)) return true;
+        return find(input, new Captures()) >= 0;
+    }
+
+    // Returns the start of the first match, or -1. On success caps holds the group spans
+    // and the match end; caps is reset before every attempt, so callers can reuse one instance.
+    public int find(String input, Captures caps) {
+        caps.setLineMode(multiline);
+        if (metrics != null) return findInstrumented(input, caps);
+        if (multiline) return nextLineMatch(input, 0, lastLinePosition(input), caps);
+        return findPlanned(input, caps);
+    }
+
+    // Executes the current plan.
+    private int findPlanned(String input, Captures caps) {
+        EnginePlanner.Plan p = plan();
+        if (p.tier == PatternMetrics.Tier.LITERAL) return findLiteral(input, p.literal, caps);
+        if (p.tier == PatternMetrics.Tier.SHIFT_AND) return findShiftAnd(input, caps);
+
+        int last = anchoredStart ? 0 : input.length();
+        if (p.suffix != null) {
+            // The match ends with the suffix, so it cannot start after the suffix's last occurrence
+            int at = anchoredEnd
+                    ? (input.endsWith(p.suffix) ? input.length() - p.suffix.length() : -1)
+                    : input.lastIndexOf(p.suffix);
+            if (at < 0) return -1;
+            last = Math.min(last, at);
+        }
+        for (int i = 0; i <= last; i++) {
+            if (leadingLiteral >= 0) {
+                i = input.indexOf(leadingLiteral, i);
+                if (i < 0 || i > last) return -1;
+            }
+            caps.countStartAttempt();
+            caps.reset();
+            if (matchesRemaining(input, i, 0, caps)) return i;
+        }
+        return -1;
+    }
+
+    private int findLiteral(String input, String literal, Captures caps) {
+        int start;
+        if (anchoredStart && anchoredEnd) start = input.equals(literal) ? 0 : -1;
+        else if (anchoredStart) start = input.startsWith(literal) ? 0 : -1;
+        else if (anchoredEnd) start = input.endsWith(literal) ? input.length() - literal.length() : -1;
+        else start = input.indexOf(literal);
+        caps.reset();
+        if (start >= 0) caps.setMatchEnd(start + literal.length());
+        return start;
+    }
+
+    private int findShiftAnd(String input, Captures caps) {
+        ApproximateMatcher a = automaton;
+        if (a == null) automaton = a = new ApproximateMatcher(this, 0);
+        int end = a.firstMatchEnd(input);
+        caps.reset();
+        if (end < 0) return -1;
+        caps.setMatchEnd(end);
+        return end - tokens.size();
+    }
+
+    // Same search as find(), counting into local variables and publishing once per call.
+    private int findInstrumented(String input, Captures caps) {
+        MatchEvent event = new MatchEvent();
+        event.begin();
+        PatternMetrics.Tier tier = multiline ? PatternMetrics.Tier.MULTILINE_BACKTRACK : plan().tier;
+        boolean backtracking = tier != PatternMetrics.Tier.LITERAL && tier != PatternMetrics.Tier.SHIFT_AND;
+        PatternMetrics.Counters counters = new PatternMetrics.Counters();
+        caps.setCounters(counters);
+        int found;
+        try {
+            found = multiline ? nextLineMatch(input, 0, lastLinePosition(input), caps) : findPlanned(input, caps);
+        } finally {
+            caps.setCounters(null);
+        }
+
+        metrics.calls.increment();
+        metrics.charsScanned.add(input.length());
+        metrics.tierUses[tier.ordinal()].increment();
+        counters.publishTo(metrics);
+        if (found >= 0) metrics.matches.increment();
+        if (backtracking && leadingLiteral >= 0) {
+            metrics.prefilterCandidates.add(counters.startAttempts);
+            if (found >= 0) metrics.prefilterHits.increment();
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.pattern = source;
+            event.inputLength = input.length();
+            event.matched = found >= 0;
+            event.startAttempts = counters.startAttempts;
+            event.tier = tier.name();
+            event.commit();
+        }
+        return found;
+    }
+
+    // Runs the engine over the whole block and reports each line that contains a match,
+    // resuming at the next line after a hit. Lines are only materialized by the handler.
+    public void scanLines(String block, LineMatchHandler handler) {
+        scanLines(block, new Captures(), handler);
+    }
+
+    public void scanLines(String block, Captures caps, LineMatchHandler handler) {
+        if (!multiline) throw new IllegalStateException("scanLines needs a multiline RegexMatcher");
+        caps.setLineMode(true);
+        PatternMetrics.Counters counters = metrics != null ? new PatternMetrics.Counters() : null;
+        caps.setCounters(counters);
+        int limit = lastLinePosition(block);
+        long matched = 0;
+        int pos = 0;
+        while (pos <= limit) {
+            int start = nextLineMatch(block, pos, limit, caps);
+            if (start < 0) break;
+            matched++;
+            int lineStart = start == 0 ? 0 : block.lastIndexOf('\n', start - 1) + 1;
+            int lineEnd = block.indexOf('\n', start);
+            if (lineEnd < 0) lineEnd = block.length();
+            if (!handler.onMatch(lineStart, lineEnd, start, caps)) break;
+            pos = lineEnd + 1;
+        }
+        caps.setCounters(null);
+        if (metrics != null) {
+            metrics.calls.increment();
+            metrics.charsScanned.add(block.length());
+            metrics.matches.add(matched);
+            metrics.tierUses[PatternMetrics.Tier.MULTILINE_BACKTRACK.ordinal()].increment();
+            counters.publishTo(metrics);
+        }
+    }
+
+    // Last offset at which a line can still start or end: a trailing newline terminates
+    // the last line rather than opening an empty one.
+    private static int lastLinePosition(String block) {
+        int n = block.length();
+        if (n == 0) return -1;
+        return block.charAt(n - 1) == '\n' ? n - 1 : n;
+    }
+
+    // Start of the first match at or after from (a line start when anchored), or -1.
+    private int nextLineMatch(String block, int from, int limit, Captures caps) {
+        int i = from;
+        while (i <= limit) {
+            if (!anchoredStart && leadingLiteral >= 0) {
+                i = block.indexOf(leadingLiteral, i);
+                if (i < 0 || i > limit) return -1;
+            }
+            caps.countStartAttempt();
+            caps.reset();
+            if (matchesRemaining(block, i, 0, caps)) return i;
+            if (anchoredStart) {
+                int nl = block.indexOf('\n', i);
+                if (nl < 0) return -1;
+                i = nl + 1;
+            } else {
+                i++;
             }
-            return false;
         }
+        return -1;
     }
 
-    private boolean matchesAt(String input, int start) {
-        return matchesRemaining(input, start, 0, new Captures());
+    private boolean atEnd(String input, int i) {
+        return i == input.length() || (multiline && input.charAt(i) == '\n');
     }
 
     private boolean matchesRemaining(String input, int i, int j, Captures caps) {
@@ -62,6 +293,7 @@ public class RegexMatcher {
             if (token.type == Token.TokenType.ALTERNATION) {
                 if (token.quantifier == Token.Quantifier.ONE) {
                     for (List<Token> alt : token.alternatives) {
+                        caps.countBacktrack();
                         Captures temp = caps.copy();
                         int next = matchTokens(input, i, alt, temp);
                         if (next != -1) {
@@ -81,6 +313,7 @@ public class RegexMatcher {
                 } else if (token.quantifier == Token.Quantifier.ZERO_OR_ONE) {
                     // take it
                     for (List<Token> alt : token.alternatives) {
+                        caps.countBacktrack();
                         Captures temp = caps.copy();
                         int next = matchTokens(input, i, alt, temp);
                         if (next != -1) {
@@ -95,6 +328,7 @@ public class RegexMatcher {
                         }
                     }
                     // or skip
+                    caps.countBacktrack();
                     return matchesRemaining(input, i, j + 1, caps);
 
                 } else { // ONE_OR_MORE
@@ -127,10 +361,12 @@ public class RegexMatcher {
                     if (posHistory.isEmpty()) return false;
                     j++;
                     for (int idx = posHistory.size() - 1; idx >= 0; idx--) {
+                        caps.countBacktrack();
                         int p = posHistory.get(idx);
                         Captures temp = capHistory.get(idx).copy();
                         if (anchoredEnd && j >= tokens.size()) {
-                            if (p == input.length()) {
+                            if (atEnd(input, p)) {
+                                temp.setMatchEnd(p);
                                 caps.replaceWith(temp);
                                 return true;
                             }
@@ -160,6 +396,7 @@ public class RegexMatcher {
                         }
                     }
                     // skip
+                    caps.countBacktrack();
                     return matchesRemaining(input, i, j + 1, caps);
 
                 } else { // ONE_OR_MORE
@@ -179,10 +416,12 @@ public class RegexMatcher {
                     if (count == 0) return false;
                     j++;
                     for (int idx = posHistory.size() - 1; idx >= 0; idx--) {
+                        caps.countBacktrack();
                         Captures temp = capHistory.get(idx).copy();
                         int p = posHistory.get(idx);
                         if (anchoredEnd && j >= tokens.size()) {
-                            if (p == input.length()) {
+                            if (atEnd(input, p)) {
+                                temp.setMatchEnd(p);
                                 caps.replaceWith(temp);
                                 return true;
                             }
@@ -213,6 +452,7 @@ public class RegexMatcher {
                     }
                 }
                 // skip
+                caps.countBacktrack();
                 return matchesRemaining(input, i, j + 1, caps);
 
             } else { // ONE_OR_MORE
@@ -230,15 +470,18 @@ public class RegexMatcher {
                 if (posHistory.isEmpty()) return false;
                 j++;
                 for (int idx = posHistory.size() - 1; idx >= 0; idx--) {
+                    caps.countBacktrack();
                     Captures temp = capHistory.get(idx).copy();
                     int p = posHistory.get(idx);
                     if (j >= tokens.size()) {
                         if (anchoredEnd) {
-                            if (p == input.length()) {
+                            if (atEnd(input, p)) {
+                                temp.setMatchEnd(p);
                                 caps.replaceWith(temp);
                                 return true;
                             }
                         } else {
+                            temp.setMatchEnd(p);
                             caps.replaceWith(temp);
                             return true;
                         }
@@ -251,7 +494,9 @@ public class RegexMatcher {
             }
         }
 
-        return !anchoredEnd || (i == input.length());
+        if (anchoredEnd && !atEnd(input, i)) return false;
+        caps.setMatchEnd(i);
+        return true;
     }
 
     private int matchGroupOnce(String input, int i, Token groupToken, Captures caps) {
@@ -284,7 +529,7 @@ public class RegexMatcher {
         while (j < groupTokens.size()) {
             Token token = groupTokens.get(j);
             
-            System.err.printf("[DEBUG] Matching token %s at input[%d]: '%s'%n",
+            if (DEBUG) System.err.printf("[DEBUG] Matching token %s at input[%d]: '%s'%n",
                     token.type, pos, pos < input.length() ? input.substring(pos) : "<EOF>");
 
             if (token.type == Token.TokenType.ALTERNATION) {
@@ -292,6 +537,7 @@ public class RegexMatcher {
 
                 if (token.quantifier == Token.Quantifier.ONE) {
                     for (List<Token> altBranch : token.alternatives) {
+                        caps.countBacktrack();
                         Captures branchCaps = caps.copy();
                         int mid = matchTokens(input, pos, altBranch, branchCaps);
                         if (mid == -1) continue;
@@ -309,6 +555,7 @@ public class RegexMatcher {
 
                 } else if (token.quantifier == Token.Quantifier.ZERO_OR_ONE) {
                     for (List<Token> altBranch : token.alternatives) {
+                        caps.countBacktrack();
                         Captures branchCaps = caps.copy();
                         int mid = matchTokens(input, pos, altBranch, branchCaps);
                         if (mid == -1) continue;
@@ -355,6 +602,7 @@ public class RegexMatcher {
 
                     remainder = groupTokens.subList(j + 1, groupTokens.size());
                     for (int idx = posHistory.size() - 1; idx >= 0; idx--) {
+                        caps.countBacktrack();
                         int after = posHistory.get(idx);
                         Captures branchCaps = capHistory.get(idx).copy();
                        
@@ -390,6 +638,7 @@ public class RegexMatcher {
                         return endPos;
                     }
                 }
+                caps.countBacktrack();
                 j++;
                 continue;
 
@@ -412,6 +661,7 @@ public class RegexMatcher {
                 if (!firstMatched) return -1;
 
                 for (int idx = posHistory.size() - 1; idx >= 0; idx--) {
+                    caps.countBacktrack();
                     int after = posHistory.get(idx);
                     Captures branchCaps = capHistory.get(idx).copy();
                     int endPos = matchTokens(input, after, remainder, branchCaps);
@@ -546,8 +796,7 @@ public class RegexMatcher {
     }
     
     public static int matchTokensStatic(String input, int i, List<Token> tokens, Captures caps) {
-        RegexMatcher dummy = new RegexMatcher(""); // dummy instance
-        return dummy.matchTokens(input, i, tokens, caps);
+        return STRUCTURAL.matchTokens(input, i, tokens, caps);
     }
     
     private int findClosingParen(String pattern, int start) {
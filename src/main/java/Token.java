@@ -36,7 +36,7 @@ public class Token {
                 if (i < input.length() && input.charAt(i) == text.charAt(0)) return i + 1;
                 return -1;
             case DOT:
-                if (i < input.length()) return i + 1;
+                if (i < input.length() && !(caps.isLineMode() && input.charAt(i) == '\n')) return i + 1;
                 return -1;
             case DIGIT:
                 if (i < input.length() && Character.isDigit(input.charAt(i))) return i + 1;
@@ -48,7 +48,8 @@ public class Token {
                 if (i < input.length() && inCharClass(input.charAt(i), text)) return i + 1;
                 return -1;
             case NEGATIVE_GROUP:
-                if (i < input.length() && !inCharClass(input.charAt(i), text)) return i + 1;
+                if (i < input.length() && !inCharClass(input.charAt(i), text)
+                        && !(caps.isLineMode() && input.charAt(i) == '\n')) return i + 1;
                 return -1;
             case BACKREF: {
                 List<Token> tokens = caps.getGroupTokens(backrefIndex);
@@ -56,7 +57,7 @@ public class Token {
 
                 if (!tokens.isEmpty()) {
                     resolved = caps.resolveGroup(input, backrefIndex, tokens);
-                    System.err.printf("[DEBUG] Resolving \\%d from tokens -> '%s'%n", backrefIndex, resolved);
+                    if (RegexMatcher.DEBUG) System.err.printf("[DEBUG] Resolving \\%d from tokens -> '%s'%n", backrefIndex, resolved);
 
                     // Prefer literal match first
                     if (resolved != null && !resolved.isEmpty() &&
@@ -76,7 +77,7 @@ public class Token {
 
                 } else {
                     resolved = caps.getGroup(input, backrefIndex);
-                    System.err.printf("[DEBUG] Backref \\%d resolved to '%s', matching at input[%d]: '%s'%n",
+                    if (RegexMatcher.DEBUG) System.err.printf("[DEBUG] Backref \\%d resolved to '%s', matching at input[%d]: '%s'%n",
                             backrefIndex, resolved, i, input.substring(i));
                     if (resolved == null || resolved.isEmpty()) return -1;
                     if (input.startsWith(resolved, i)) {
@@ -91,6 +92,33 @@ public class Token {
         }
     }
 
+    public boolean isSingleChar() {
+        switch (type) {
+            case CHAR:
+            case DOT:
+            case DIGIT:
+            case WORD:
+            case POSITIVE_GROUP:
+            case NEGATIVE_GROUP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Character test for the token types that always consume exactly one char.
+    public boolean matchesChar(char c) {
+        switch (type) {
+            case CHAR: return c == text.charAt(0);
+            case DOT: return true;
+            case DIGIT: return Character.isDigit(c);
+            case WORD: return isWord(c);
+            case POSITIVE_GROUP: return inCharClass(c, text);
+            case NEGATIVE_GROUP: return !inCharClass(c, text);
+            default: return false;
+        }
+    }
+
     private boolean isWord(char c) {
         return Character.isLetterOrDigit(c) || c == '_';
     }
@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class ApproximateMatcherTest {
+    // Textbook Levenshtein DP over pattern positions: true if some substring of s (or all of
+    // it, when anchored) is within k edits of the pattern.
+    private static boolean withinDistance(List<Token> tokens, boolean anchoredStart, boolean anchoredEnd,
+                                          int k, String s) {
+        int m = tokens.size();
+        int[] cost = new int[m + 1];
+        for (int p = 0; p <= m; p++) cost[p] = p;
+        if (!anchoredEnd && cost[m] <= k) return true;
+        for (int j = 0; j < s.length(); j++) {
+            int[] next = new int[m + 1];
+            next[0] = anchoredStart ? j + 1 : 0;
+            for (int p = 1; p <= m; p++) {
+                int substitute = cost[p - 1] + (tokens.get(p - 1).matchesChar(s.charAt(j)) ? 0 : 1);
+                next[p] = Math.min(substitute, Math.min(cost[p] + 1, next[p - 1] + 1));
+            }
+            cost = next;
+            if (!anchoredEnd && cost[m] <= k) return true;
+        }
+        return cost[m] <= k;
+    }
+
+    // Patterns up to 150 positions, so the multi-word bit vectors are covered too
+    @Test
+    void agreesWithDynamicProgramming() {
+        Random random = new Random(1);
+        String alphabet = "abc";
+        for (int t = 0; t < 40000; t++) {
+            int length = random.nextInt(4) == 0 ? 60 + random.nextInt(90) : random.nextInt(8);
+            StringBuilder pattern = new StringBuilder();
+            if (random.nextBoolean()) pattern.append('^');
+            for (int i = 0; i < length; i++) {
+                int x = random.nextInt(10);
+                pattern.append(x < 7 ? String.valueOf(alphabet.charAt(random.nextInt(3))) : x == 7 ? "." : x == 8 ? "[ab]" : "\\d");
+            }
+            if (random.nextBoolean()) pattern.append('$');
+            StringBuilder input = new StringBuilder();
+            int inputLength = random.nextInt(length + 10);
+            for (int i = 0; i < inputLength; i++) {
+                input.append(random.nextInt(8) == 0 ? '1' : alphabet.charAt(random.nextInt(3)));
+            }
+            int k = random.nextInt(4);
+
+            RegexMatcher matcher = new RegexMatcher(pattern.toString());
+            boolean expected = withinDistance(matcher.tokens(), matcher.anchoredStart(), matcher.anchoredEnd(),
+                    k, input.toString());
+            assertEquals(expected, new ApproximateMatcher(matcher, k).matches(input.toString()),
+                    pattern + " on \"" + input + "\" with k=" + k);
+        }
+    }
+
+    @Test
+    void countsEdits() {
+        assertTrue(new ApproximateMatcher(new RegexMatcher("recieve"), 2).matches("we receive it"));
+        assertFalse(new ApproximateMatcher(new RegexMatcher("recieve"), 0).matches("we receive it"));
+    }
+
+    @Test
+    void rejectsWhatItCannotRun() {
+        assertThrows(IllegalArgumentException.class, () -> new ApproximateMatcher(new RegexMatcher("a+b"), 1));
+        assertThrows(IllegalArgumentException.class, () -> new ApproximateMatcher(new RegexMatcher("ab"), -1));
+    }
+}
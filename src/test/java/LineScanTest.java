@@ -0,0 +1,107 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class LineScanTest {
+    private static final String[] PATTERNS = {
+        "^log", "dog$", "^a+$", "d.g", "[^x]+z", "(cat|dog)s?$", "^(\\w+) and \\1$", "b", "^", "$", "x?$", "\\d+", "a.+b"
+    };
+
+    private static String randomText(Random random, int maxLength) {
+        String alphabet = "abdglos x\n123zc";
+        StringBuilder sb = new StringBuilder();
+        int n = random.nextInt(maxLength);
+        for (int i = 0; i < n; i++) sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        if (random.nextInt(5) == 0) sb.append("log dog\ncat and cat\n");
+        return sb.toString();
+    }
+
+    private static List<String> scan(RegexMatcher matcher, String block) {
+        List<String> lines = new ArrayList<>();
+        matcher.scanLines(block, (lineStart, lineEnd, matchStart, caps) -> {
+            lines.add(block.substring(lineStart, lineEnd));
+            return true;
+        });
+        return lines;
+    }
+
+    // One scanLines pass over a block reports exactly the lines that a per-line matcher accepts
+    @Test
+    void multilineScanMatchesPerLine() {
+        Random random = new Random(3);
+        for (int t = 0; t < 3000; t++) {
+            String block = randomText(random, 40);
+            String[] lines = block.split("\n", -1);
+            int count = block.isEmpty() ? 0 : block.endsWith("\n") ? lines.length - 1 : lines.length;
+            for (String pattern : PATTERNS) {
+                RegexMatcher single = new RegexMatcher(pattern);
+                List<String> expected = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    if (single.matches(lines[i])) expected.add(lines[i]);
+                }
+                assertEquals(expected, scan(new RegexMatcher(pattern, true), block),
+                        pattern + " on \"" + block.replace("\n", "\\n") + "\"");
+            }
+        }
+    }
+
+    // Blocks end on line boundaries, so scanning block by block equals one whole-input scan,
+    // whatever the block size and however the reads are split
+    @Test
+    void blocksGiveTheSameLinesAsOneScan() throws IOException {
+        Random random = new Random(5);
+        for (int t = 0; t < 2000; t++) {
+            String text = randomText(random, 80);
+            for (String pattern : PATTERNS) {
+                RegexMatcher matcher = new RegexMatcher(pattern, true);
+                LineBlockReader blocks = new LineBlockReader(new ChoppyReader(text, random), 1 + random.nextInt(6));
+                StringBuilder seen = new StringBuilder();
+                List<String> lines = new ArrayList<>();
+                String block;
+                while ((block = blocks.next()) != null) {
+                    seen.append(block);
+                    if (seen.length() < text.length()) assertEquals('\n', block.charAt(block.length() - 1));
+                    lines.addAll(scan(matcher, block));
+                }
+                assertEquals(text, seen.toString());
+                assertEquals(scan(matcher, text), lines, pattern + " on \"" + text.replace("\n", "\\n") + "\"");
+            }
+        }
+    }
+
+    // Returns 1-7 chars per read and reports ready() at random
+    private static final class ChoppyReader extends Reader {
+        private final String text;
+        private final Random random;
+        private int pos = 0;
+
+        ChoppyReader(String text, Random random) {
+            this.text = text;
+            this.random = random;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) {
+            if (pos >= text.length()) return -1;
+            int n = Math.min(Math.min(len, 1 + random.nextInt(7)), text.length() - pos);
+            text.getChars(pos, pos + n, buf, off);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public boolean ready() {
+            return random.nextBoolean();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PatternSetTest {
+    @TempDir
+    Path dir;
+
+    private static List<String> randomPatterns(Random random, int count) {
+        String alphabet = "abc.*+?()|\\d[]^$";
+        List<String> patterns = new ArrayList<>();
+        while (patterns.size() < count) {
+            StringBuilder sb = new StringBuilder();
+            int n = 1 + random.nextInt(6);
+            for (int i = 0; i < n; i++) sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            try {
+                new RegexMatcher(sb.toString());
+                patterns.add(sb.toString());
+            } catch (RuntimeException e) {
+                // not a pattern the tokenizer accepts
+            }
+        }
+        return patterns;
+    }
+
+    private Path compile(List<String> patterns) throws IOException {
+        Path rules = dir.resolve("rules.txt");
+        Path bin = dir.resolve("rules.bin");
+        Files.write(rules, patterns);
+        PatternSet.compile(rules, bin);
+        return bin;
+    }
+
+    private static boolean matches(String pattern, String input) {
+        try {
+            return new RegexMatcher(pattern).matches(input);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    // The stored plans and the required-literal prefilter must not change which rule matches first
+    @Test
+    void firstMatchAgreesWithFreshMatchers() throws IOException {
+        Random random = new Random(7);
+        List<String> patterns = randomPatterns(random, 500);
+        PatternSet set = PatternSet.load(compile(patterns));
+        assertEquals(patterns.size(), set.size());
+        for (int t = 0; t < 2000; t++) {
+            StringBuilder input = new StringBuilder();
+            int n = random.nextInt(10);
+            for (int i = 0; i < n; i++) input.append("abc1 ".charAt(random.nextInt(5)));
+            int expected = -1;
+            for (int i = 0; i < patterns.size() && expected < 0; i++) {
+                if (matches(patterns.get(i), input.toString())) expected = i;
+            }
+            assertEquals(expected, set.firstMatch(input.toString()), "\"" + input + "\"");
+        }
+    }
+
+    @Test
+    void rejectsTruncatedFiles() throws IOException {
+        byte[] data = Files.readAllBytes(compile(randomPatterns(new Random(11), 50)));
+        Path truncated = dir.resolve("truncated.bin");
+        for (int length : new int[] { 0, 5, 12, 20, data.length / 2, data.length - 1 }) {
+            Files.write(truncated, Arrays.copyOf(data, length));
+            assertThrows(IOException.class, () -> PatternSet.load(truncated), "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        Path other = dir.resolve("other.bin");
+        Files.writeString(other, "not a pattern file\n");
+        assertThrows(IOException.class, () -> PatternSet.load(other));
+        assertThrows(IOException.class, () -> PatternSet.load(dir.resolve("missing.bin")));
+    }
+}
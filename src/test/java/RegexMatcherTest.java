@@ -0,0 +1,83 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class RegexMatcherTest {
+    private static void check(String pattern, String input, boolean expected) {
+        assertEquals(expected, new RegexMatcher(pattern).matches(input), pattern + " on \"" + input + "\"");
+    }
+
+    @Test
+    void literalsAndClasses() {
+        check("d", "dog", true);
+        check("\\d", "abc", false);
+        check("\\d", "a1", true);
+        check("\\w", "$$", false);
+        check("[abc]", "xyz", false);
+        check("[^abc]", "abc", false);
+        check("[^abc]", "abd", true);
+        check("\\d\\d\\d apples", "sally has 124 apples", true);
+        check("d.g", "dog", true);
+        check("d.g", "cog", false);
+        check("ab", "xxab", true);
+        check("", "x", true);
+    }
+
+    @Test
+    void anchorsAndQuantifiers() {
+        check("^log", "log", true);
+        check("^log", "slog", false);
+        check("dog$", "hotdog", true);
+        check("dog$", "dogs", false);
+        check("ca+t", "caaats", true);
+        check("ca+t", "ct", false);
+        check("ca?t", "ct", true);
+        check("ca?t", "cag", false);
+        check("^a+$", "aaa", true);
+        check("^a+$", "aab", false);
+    }
+
+    @Test
+    void groupsAndBackreferences() {
+        check("(cat|dog)", "apple", false);
+        check("a (cat|dog) and (cat|dog)s", "a dog and cats", true);
+        check("(\\w+) and \\1", "cat and cat", true);
+        check("(\\w+) and \\1", "cat and dog", false);
+        check("([abcd]+) is \\1, not [^xyz]+", "abcd is abcd, not efg", true);
+        check("^(\\w+) starts and ends with \\1$", "this starts and ends with this", true);
+        check("once a (drea+mer), alwaysz? a \\1", "once a dreaaamer, always a dreaaamer", true);
+        check("((\\w\\w\\w\\w) (\\d\\d\\d)) is doing \\2 \\3 times, and again \\1 times",
+                "grep 101 is doing grep 101 times, and again grep 101 times", true);
+        check("^((\\w+) (\\w+)) is made of \\2 and \\3. love \\1$",
+                "apple pie is made of apple and pie. love apple pie", true);
+        check("(ab)+c", "ababc", true);
+        check("(a|b)+c", "abac", true);
+    }
+
+    // Every line of the corpus is "pattern | input -> expected", recorded from random
+    // patterns over a small alphabet before the planner tiers existed; whatever tier a
+    // pattern now runs on must give the same answer.
+    @Test
+    void regressionCorpus() throws IOException {
+        int checked = 0;
+        try (InputStream in = RegexMatcherTest.class.getResourceAsStream("/regex-regression.txt");
+             BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                int arrow = line.lastIndexOf(" -> ");
+                int bar = line.indexOf(" | ");
+                String pattern = line.substring(0, bar);
+                String input = line.substring(bar + 3, arrow);
+                check(pattern, input, Boolean.parseBoolean(line.substring(arrow + 4)));
+                checked++;
+            }
+        }
+        assertEquals(6000, checked);
+    }
+}